@@ -47,7 +47,7 @@ public class HttpMap extends LudMapPanel {
 	 * Na podstawie obiektu klasy {@link ServerResponse} przekazuje do obiektu
 	 * informacje na temat połączenia w ramach którego otrzymano tę odpowiedź.
 	 * Odbywa się to zgodnie z zasadami opisanymi przy okazji metody
-	 * {@link #processConnection(InetAddress, double, int)}.
+	 * {@link #processConnection(InetAddress, double, long)}.
 	 * 
 	 * @param response odpowiedź od serwera
 	 */
@@ -69,12 +69,12 @@ public class HttpMap extends LudMapPanel {
 	 * @param server adres ip serwera którego dotyczy to połączenie
 	 * @param latency wartość opóźnienia w połączeniu (w sekundach)
 	 * @param length ilość bajtów danych otrzymanych w ramach danego połączenia
-	 * @see ConversationProperties#update(double, int)
+	 * @see ConversationProperties#update(double, long)
 	 * @see #paintComponent(Graphics)
 	 * @see Geolocation
 	 * @see Traceroute
 	 */
-	public void processConnection(final InetAddress server, final double latency, final int length) {
+	public void processConnection(final InetAddress server, final double latency, final long length) {
 
 		if(paths.containsKey(server)) {
 			/*
@@ -340,7 +340,7 @@ public class HttpMap extends LudMapPanel {
 		private List<IntermediateRouter> intermediateRouters = new ArrayList<IntermediateRouter>();
 		
 		private volatile double latency;
-		private volatile int length;
+		private volatile long length;
 		
 		/**
 		 * Tworzy nowy obiekt, ustawiając początkowe wartości sumy ilości danych i opóźnienia.
@@ -349,7 +349,7 @@ public class HttpMap extends LudMapPanel {
 		 * @param latency opóźnienie połączenia
 		 * @param length ilość danych otrzymanych od serwera
 		 */
-		public ConversationProperties(Coordinates serverCoordinates, double latency, int length) {
+		public ConversationProperties(Coordinates serverCoordinates, double latency, long length) {
 			this.serverCoordinates = serverCoordinates;
 			this.latency = latency;
 			this.length = length;
@@ -369,7 +369,7 @@ public class HttpMap extends LudMapPanel {
 		 * @param latency opóźnienie w połączniu
 		 * @param length ilość danych otrzymanych od serwera w ramach tego połączenia
 		 */
-		public synchronized void update(double latency, int length) {
+		public synchronized void update(double latency, long length) {
 			this.length += length;
 			
 			double alpha = 0.125;
@@ -419,7 +419,7 @@ public class HttpMap extends LudMapPanel {
 		/**
 		 * Zwraca średnie opóźnienie w ramach komunikacji z danym serwerem.
 		 * 
-		 * @see #update(double, int)
+		 * @see #update(double, long)
 		 */
 		public double getLatency() {
 			return latency;
@@ -429,7 +429,7 @@ public class HttpMap extends LudMapPanel {
 		 * Zwraca sumę ilości danych w ramach komunikacji z danym serwerem.
 		 * 
 		 */
-		public int getLength() {
+		public long getLength() {
 			return length;
 		}
 	}
@@ -0,0 +1,176 @@
+package pl.trammer.ludwik.ludproxy;
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Obsługa instrukcji {@code stale-while-revalidate} (RFC 5861).
+ * <p>
+ * Jeśli odpowiedź z cache straciła świeżość niedawno (nie dawniej niż określa
+ * instrukcja {@code stale-while-revalidate} z nagłówka {@code Cache-Control}
+ * odpowiedzi, lub domyślne okno ustawione przez {@link #configure(int, int, int)}),
+ * klient dostaje ją od razu, jak przy zwykłym trafieniu w cache, a w tym czasie
+ * w tle wysyłane jest do serwera zapytanie warunkowe, które odświeży cache.
+ * <p>
+ * Zapytania w tle wykonywane są przez ograniczoną pulę wątków z ograniczoną
+ * kolejką. Jeśli kolejka jest pełna, odświeżenie jest pomijane (odpowiedź zostanie
+ * odświeżona przy którymś z kolejnych zapytań).
+ * <p>
+ * Wszystkie metody klasy są statyczne.
+ *
+ * @author Ludwik Trammer
+ */
+public class BackgroundRevalidator {
+	private static int defaultWindow = 0;
+
+	private static ThreadPoolExecutor executor = newExecutor(2, 100);
+
+	/**
+	 * Adresy, które w tej chwili czekają na odświeżenie lub są odświeżane.
+	 */
+	private static final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private static final AtomicInteger scheduled = new AtomicInteger();
+	private static final AtomicInteger completed = new AtomicInteger();
+	private static final AtomicInteger failed = new AtomicInteger();
+	private static final AtomicInteger dropped = new AtomicInteger();
+
+	private static ThreadPoolExecutor newExecutor(int threads, int queueSize) {
+		final AtomicInteger threadNum = new AtomicInteger();
+		ThreadPoolExecutor ex = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "LudProxy-revalidator-" + threadNum.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		ex.allowCoreThreadTimeOut(true);
+		return ex;
+	}
+
+	/**
+	 * Ustawia parametry odświeżania w tle.
+	 *
+	 * @param defaultWindow domyślne okno (w sekundach) {@code stale-while-revalidate},
+	 * stosowane do odpowiedzi, które same go nie określają ({@code 0} - brak)
+	 * @param threads liczba wątków odświeżających odpowiedzi
+	 * @param queueSize maksymalna liczba odpowiedzi czekających na odświeżenie
+	 */
+	public static void configure(int defaultWindow, int threads, int queueSize) {
+		BackgroundRevalidator.defaultWindow = defaultWindow;
+		executor = newExecutor(Math.max(1, threads), queueSize);
+	}
+
+	/**
+	 * Sprawdza czy nieświeża odpowiedź z cache może zostać wysłana do klienta
+	 * od razu, z odświeżeniem w tle.
+	 *
+	 * @param cached nieświeża odpowiedź z cache (w postaci zwracanej przez
+	 * {@link Cache#get(RequestHeader)})
+	 * @return {@code true} jeśli można wysłać odpowiedź i zlecić jej odświeżenie
+	 */
+	public static boolean canServeStale(ServerResponse cached) {
+		RequestHeader request = cached.getRequest();
+
+		// klient, który sam określa oczekiwania co do świeżości, dostaje to czego chce
+		if(request.getCacheControlValue("max-age")!=null
+				|| request.getCacheControlValue("min-fresh")!=null
+				|| request.fieldContainsValue("Cache-Control", "no-cache")) return false;
+
+		int window = cached.getStaleWhileRevalidate();
+		if(window < 0) window = defaultWindow;
+
+		return window > 0 && cached.isStaleUsable(window);
+	}
+
+	/**
+	 * Zleca odświeżenie w tle odpowiedzi z cache pasującej do podanego zapytania.
+	 * Jeśli ten adres już czeka na odświeżenie, nic się nie dzieje.
+	 *
+	 * @param request zapytanie klienta, na które odpowiedziano nieświeżą kopią z cache
+	 */
+	public static void schedule(RequestHeader request) {
+		final String url = request.getUrl();
+		if(!pending.add(url)) return;
+
+		// kopia zapytania, bez elementów dotyczących tylko tego jednego klienta
+		final RequestHeader revalidation = new RequestHeader(request);
+		revalidation.removeField("If-Match");
+		revalidation.removeField("If-None-Match");
+		revalidation.removeField("If-Modified-Since");
+		revalidation.removeField("Range");
+		revalidation.removeField("If-Range");
+
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						revalidate(revalidation);
+					} finally {
+						pending.remove(url);
+					}
+				}
+			});
+			scheduled.incrementAndGet();
+		} catch(RejectedExecutionException e) {
+			pending.remove(url);
+			dropped.incrementAndGet();
+		}
+	}
+
+	private static void revalidate(RequestHeader request) {
+		Info info = new Info("odświeżanie w tle");
+		CollapsedForwarding.Flight flight = CollapsedForwarding.join(request);
+
+		// ktoś inny już pyta serwer o ten adres
+		if(flight!=null && !flight.isLeader()) return;
+
+		try {
+			ServerResponse cached = Cache.get(request.getUrl());
+			if(cached==null || !Cache.acquireBody(cached.getBody())) return;
+
+			info.say("Odświeżam " + request.getUrl());
+			ServerResponse response;
+			try {
+				response = new ServerResponse(request, new LudInputStream(new ByteArrayInputStream(new byte[0])), null,
+						new ServerResponse(cached, request, null, null));
+			} finally {
+				Cache.releaseBody(cached.getBody());
+			}
+			
+			if(response.getOriginError()!=null) {
+				// serwer nie działa, w cache zostaje stara kopia
+				failed.incrementAndGet();
+				info.err("Nie udało się odświeżyć " + request.getUrl() + ": " + response.getOriginError().getMessage());
+			} else {
+				completed.incrementAndGet();
+			}
+		} catch(Exception e) {
+			failed.incrementAndGet();
+			info.err("Nie udało się odświeżyć " + request.getUrl() + ": " + e.getMessage());
+		} finally {
+			if(flight!=null) flight.finish();
+		}
+	}
+
+	/**
+	 * Zwraca krótki opis stanu (do wypisywania w komunikatach).
+	 */
+	public static String getStats() {
+		return "odświeżanie w tle - zlecone: " + scheduled.get()
+				+ ", w kolejce: " + executor.getQueue().size()
+				+ ", wykonywane: " + executor.getActiveCount()
+				+ ", zakończone: " + completed.get()
+				+ ", nieudane: " + failed.get()
+				+ ", pominięte: " + dropped.get();
+	}
+}
@@ -0,0 +1,97 @@
+package pl.trammer.ludwik.ludproxy;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wspólna pula buforów wejścia/wyjścia, używanych przez strumienie połączeń
+ * ({@link LudInputStream}, {@link ChunkedOutputStream}).
+ * <p>
+ * Każde połączenie potrzebuje bufora tylko na czas swojego trwania, więc zamiast
+ * tworzyć (i zostawiać do sprzątnięcia) nowe tablice dla każdego połączenia,
+ * oddane bufory trafiają do puli i są wykorzystywane ponownie. Wszystkie bufory
+ * mają tę samą wielkość. Pula nie przechowuje więcej niż określona liczba buforów
+ * - nadmiarowe są po prostu porzucane.
+ * <p>
+ * Wszystkie metody klasy są statyczne.
+ *
+ * @author Ludwik Trammer
+ */
+public class BufferPool {
+	private static volatile int bufferSize = 16*1024;
+	private static volatile int maxPooled = 256;
+
+	private static final Queue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+
+	/**
+	 * Liczba buforów w puli (osobno, bo {@code ConcurrentLinkedQueue.size()} jest kosztowne).
+	 */
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private static final AtomicInteger reused = new AtomicInteger();
+	private static final AtomicInteger created = new AtomicInteger();
+
+	/**
+	 * Ustawia wielkość buforów i maksymalną liczbę buforów w puli. Bufory o innej
+	 * wielkości, które są w tej chwili w użyciu, nie wrócą już do puli.
+	 *
+	 * @param bufferSize wielkość bufora w bajtach
+	 * @param maxPooled maksymalna liczba buforów czekających w puli ({@code 0} wyłącza pulę)
+	 */
+	public static void configure(int bufferSize, int maxPooled) {
+		if(bufferSize < 1024) throw new IllegalArgumentException("Bufor musi mieć co najmniej 1024 bajty");
+
+		BufferPool.bufferSize = bufferSize;
+		BufferPool.maxPooled = maxPooled;
+
+		while(pool.poll() != null) pooled.decrementAndGet();
+	}
+
+	/**
+	 * @return wielkość (w bajtach) buforów z puli
+	 */
+	public static int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Zwraca bufor z puli lub, jeśli pula jest pusta, nowy bufor.
+	 *
+	 * @return bufor o wielkości {@link #getBufferSize()}
+	 */
+	public static byte[] acquire() {
+		byte[] buffer = pool.poll();
+		if(buffer!=null) {
+			pooled.decrementAndGet();
+			reused.incrementAndGet();
+			return buffer;
+		}
+
+		created.incrementAndGet();
+		return new byte[bufferSize];
+	}
+
+	/**
+	 * Oddaje bufor do puli. Po wywołaniu tej metody nie wolno już z niego korzystać.
+	 *
+	 * @param buffer bufor pobrany wcześniej przez {@link #acquire()}
+	 */
+	public static void release(byte[] buffer) {
+		if(buffer==null || buffer.length!=bufferSize) return;
+
+		if(pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		pool.offer(buffer);
+	}
+
+	/**
+	 * Zwraca krótki opis stanu (do wypisywania w komunikatach).
+	 */
+	public static String getStats() {
+		return "bufory - z puli: " + reused.get()
+				+ ", nowe: " + created.get()
+				+ ", w puli: " + pooled.get();
+	}
+}
@@ -0,0 +1,146 @@
+package pl.trammer.ludwik.ludproxy;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bufor, w którym gromadzona jest treść odczytywanej wiadomości.
+ * <p>
+ * W odróżnieniu od zwykłego {@code ByteArrayOutputStream} dane mogą być odczytywane
+ * ze strumienia prosto do wnętrza bufora, a jeśli od początku znana jest długość
+ * treści (i bufor ma dokładnie taką wielkość), {@link #getBytes()} zwraca wewnętrzną
+ * tablicę zamiast jej kopii.
+ * <p>
+ * Jeśli ilość danych przekroczy określony próg, są one przenoszone do pliku
+ * ({@link #spill()}), a kolejne dane trafiają już tylko tam - w pamięci zostaje
+ * jedynie ostatnia odczytana porcja.
+ *
+ * @author Ludwik Trammer
+ */
+class ByteStore extends ByteArrayOutputStream {
+	private final long spillThreshold;
+	private File file = null;
+	private OutputStream fileOutput = null;
+	private long spilledLength = 0;
+
+	/**
+	 * @param size początkowa wielkość bufora (najlepiej dokładna długość treści, jeśli jest znana)
+	 */
+	ByteStore(int size) {
+		this(size, 0);
+	}
+
+	/**
+	 * @param size początkowa wielkość bufora (najlepiej dokładna długość treści, jeśli jest znana)
+	 * @param spillThreshold liczba bajtów, po przekroczeniu której dane przenoszone są do
+	 * pliku ({@code 0} - nigdy)
+	 */
+	ByteStore(int size, long spillThreshold) {
+		super(Math.max(0, size));
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * Odczytuje ze strumienia nie więcej niż {@code max} bajtów, bezpośrednio
+	 * na koniec bufora (w razie potrzeby powiększając go). Jeśli dane są już
+	 * zapisywane do pliku, odczytana porcja trafia na początek bufora i od
+	 * razu do pliku.
+	 *
+	 * @return liczba odczytanych bajtów lub {@code -1} jeśli strumień się skończył
+	 */
+	int readFrom(InputStream in, int max) throws IOException {
+		if(file==null && spillThreshold > 0 && count + max > spillThreshold) spill();
+
+		// poprzednia porcja jest już w pliku
+		if(file!=null) count = 0;
+
+		if(count + max > buf.length) {
+			byte[] bigger = new byte[Math.max(buf.length*2, count + max)];
+			System.arraycopy(buf, 0, bigger, 0, count);
+			buf = bigger;
+		}
+
+		int n = in.read(buf, count, max);
+		if(n > 0) {
+			count += n;
+			if(file!=null) {
+				fileOutput.write(buf, 0, n);
+				spilledLength += n;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Przenosi zgromadzone dane do nowego pliku w katalogu {@link MessageBody#getSpillDirectory()}.
+	 * Kolejne dane będą zapisywane już tylko do pliku.
+	 */
+	void spill() throws IOException {
+		if(file!=null) return;
+
+		file = MessageBody.newSpillFile();
+		fileOutput = new FileOutputStream(file);
+		fileOutput.write(buf, 0, count);
+		spilledLength = count;
+		count = 0;
+
+		// w pamięci wystarczy miejsce na jedną porcję
+		if(buf.length > BufferPool.getBufferSize()) buf = new byte[BufferPool.getBufferSize()];
+	}
+
+	/**
+	 * @return plik z danymi lub {@code null} jeśli dane są tylko w pamięci
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return łączna liczba zgromadzonych bajtów (również tych zapisanych w pliku)
+	 */
+	long length() {
+		return file!=null ? spilledLength : count;
+	}
+
+	/**
+	 * Kończy zapisywanie danych do pliku (jeśli jest używany).
+	 */
+	void finish() throws IOException {
+		if(fileOutput!=null) {
+			fileOutput.close();
+			fileOutput = null;
+		}
+	}
+
+	/**
+	 * Porzuca zgromadzone dane, usuwając plik (jeśli został utworzony).
+	 */
+	void abort() {
+		if(file==null) return;
+		try {
+			finish();
+		} catch(IOException ignore) {}
+		file.delete();
+	}
+
+	/**
+	 * @return wewnętrzna tablica bufora (dane zajmują pierwsze {@link #size()} bajtów)
+	 */
+	byte[] array() {
+		return buf;
+	}
+
+	/**
+	 * Zwraca zgromadzone dane. Jeśli wypełniają cały bufor, zwracana jest sama
+	 * wewnętrzna tablica, bez kopiowania.
+	 *
+	 * @throws IllegalStateException jeśli dane zostały przeniesione do pliku
+	 */
+	byte[] getBytes() {
+		if(file!=null) throw new IllegalStateException("Dane zostały zapisane w pliku");
+		return count==buf.length ? buf : toByteArray();
+	}
+}
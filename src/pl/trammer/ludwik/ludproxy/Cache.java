@@ -1,7 +1,12 @@
 package pl.trammer.ludwik.ludproxy;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import pl.trammer.ludwik.ludproxy.errors.*;
 
@@ -14,6 +19,25 @@ import jdbm.RecordManagerFactory;
  * czyli odpowiedzi serwera. Stan cache zapamiętywany jest między uruchomieniami programu,
  * dzięki bibliotece <a href="http://code.google.com/p/jdbm2/">JDBM2</a>.
  * <p>
+ * Odpowiedzi zapisywane są bez treści - ta trafia do osobnego rekordu bazy (lub, jeśli
+ * jest duża, do pliku), a odpowiedź zawiera tylko odwołanie do niej. Dzięki temu
+ * sprawdzanie świeżości, odpowiadanie na zapytania {@code HEAD} i warunkowe czy
+ * wyświetlanie zawartości cache nie wymaga odczytywania treści.
+ * <p>
+ * Domyślnie każda zmiana jest od razu zatwierdzana ({@code commit}) na dysku, w wątku,
+ * który jej dokonał. W trybie "write-behind" (patrz {@link #setWriteBehind(int, int)})
+ * zmiany są widoczne od razu, ale zatwierdzane w tle, partiami - kosztem tego, że
+ * po awarii programu najświeższe zmiany mogą zostać utracone.
+ * <p>
+ * Przed bazą JDBM znajduje się {@link MemoryCache}, przechowujący w pamięci
+ * ostatnio używane odpowiedzi, więc częste trafienia nie sięgają do bazy.
+ * <p>
+ * Wielkość cache może zostać ograniczona (patrz {@link CacheEviction}) - odpowiedzi,
+ * które się nie mieszczą, są usuwane przy zapisywaniu kolejnych.
+ * <p>
+ * Odpowiedziom bez pola {@code ETag} cache może nadawać własne znaczniki, wyliczone
+ * z treści (patrz {@link #setGenerateEtags(boolean)}).
+ * <p>
  * Wszystkie metody klasy są statyczne.
  * 
  * @author Ludwik Trammer
@@ -22,14 +46,421 @@ public class Cache {
 	private static RecordManager recMan;
 	private static PrimaryHashMap<String, ServerResponse> storage;
 	
+	private static int commitDelay = 0;
+	private static int commitBatch = 100;
+	
+	/**
+	 * Liczba niezatwierdzonych zmian (w trybie write-behind) - dostęp tylko pod {@code commitLock}.
+	 */
+	private static int uncommitted = 0;
+	private static final Object commitLock = new Object();
+	private static Thread committer = null;
+	
+	private static final AtomicInteger changes = new AtomicInteger();
+	private static final AtomicInteger commits = new AtomicInteger();
+	
+	private static final AtomicInteger storageHits = new AtomicInteger();
+	private static final AtomicInteger storageMisses = new AtomicInteger();
+	
+	/**
+	 * Przedrostek znaczników nadawanych przez cache (serwer docelowy ich nie zna).
+	 */
+	private static final String GENERATED_ETAG_PREFIX = "\"lp-";
+	private static volatile boolean generateEtags = false;
+	private static final AtomicInteger generatedEtags = new AtomicInteger();
+	private static final AtomicInteger unchangedBodies = new AtomicInteger();
+	
+	/**
+	 * Liczba wątków korzystających w tej chwili z treści zapisanych poza odpowiedziami
+	 * (klucze - patrz {@link MessageBody#getStorageKey()}) oraz treści usunięte z cache,
+	 * które zostaną skasowane gdy przestanie z nich korzystać ostatni wątek.
+	 * Zapamiętywane są też skasowane rekordy bazy (dopóki baza nie użyje ich numerów
+	 * ponownie), żeby ich istnienie dało się sprawdzić bez odczytywania treści.
+	 * Dostęp tylko pod {@code bodyLock}.
+	 */
+	private static final Map<String, Integer> bodyReaders = new HashMap<String, Integer>();
+	private static final Map<String, MessageBody> pendingDiscards = new HashMap<String, MessageBody>();
+	private static final Set<Long> deletedRecords = new HashSet<Long>();
+	private static final Object bodyLock = new Object();
+	
+	/**
+	 * Licznik zmian w bazie, pozwalający sprawdzić czy odczytana z niej odpowiedź nie
+	 * została w międzyczasie zastąpiona (zanim trafi do {@link MemoryCache}).
+	 * Zmieniany tylko pod {@code memoryLock}.
+	 */
+	private static volatile long storageVersion = 0;
+	private static final Object memoryLock = new Object();
+	
 	static {
 		try {
 			recMan = RecordManagerFactory.createRecordManager(System.getProperty("java.io.tmpdir") + File.separator + "LudProxy-cache");
 			storage = recMan.hashMap("ServerResponse"); 
+			if(CacheEviction.isEnabled()) loadEvictionIndex();
 		} catch (IOException e) {
 			System.err.println("Mam problem z zapisywaniem w katalogu tymczasowym! Obrażam się.");
 			System.exit(1);
 		}
+		
+		// przy zamykaniu programu zatwierdzamy to, co jeszcze czeka
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					synchronized(commitLock) {
+						if(uncommitted==0) return;
+						uncommitted = 0;
+					}
+					recMan.commit();
+				} catch(IOException ignore) {}
+			}
+		});
+	}
+	
+	/**
+	 * Przekazuje do {@link CacheEviction} opis wszystkich odpowiedzi zapisanych w cache
+	 * (z poprzednich uruchomień programu) i usuwa te, które nie mieszczą się w limitach.
+	 */
+	private static void loadEvictionIndex() throws IOException {
+		List<String> victims = new ArrayList<String>();
+		for(String url : new ArrayList<String>(storage.keySet())) {
+			ServerResponse response = storage.get(url);
+			if(response!=null) victims.addAll(CacheEviction.stored(url, response));
+		}
+		evict(victims);
+	}
+	
+	/**
+	 * Usuwa z cache odpowiedzi wskazane przez {@link CacheEviction}.
+	 */
+	private static void evict(List<String> urls) throws IOException {
+		if(urls.isEmpty()) return;
+		
+		for(String url : urls) {
+			ServerResponse removed = storage.remove(url);
+			updateMemory(url, null);
+			if(removed!=null) discardBody(removed.getBody());
+		}
+		commit();
+	}
+	
+	/**
+	 * Uaktualnia {@link MemoryCache} po zmianie odpowiedzi w bazie. Musi zostać wywołana
+	 * już po zmianie w bazie, żeby wątki, które odczytały z niej poprzednią wersję, nie
+	 * umieściły jej w pamięci (patrz {@link #get(String)}).
+	 * 
+	 * @param response nowa wersja odpowiedzi lub {@code null} jeśli została usunięta
+	 */
+	private static void updateMemory(String url, ServerResponse response) {
+		synchronized(memoryLock) {
+			storageVersion++;
+			if(response==null) {
+				MemoryCache.remove(url);
+			} else {
+				MemoryCache.put(url, response);
+			}
+		}
+	}
+	
+	/**
+	 * Zwraca kopię odpowiedzi do zapisania w cache, z treścią zapisaną w osobnym rekordzie
+	 * bazy (chyba że jest w pliku, już ma swój rekord lub jest pusta).
+	 * 
+	 * @param etag znacznik do dodania do nagłówka ({@code null} - bez zmian)
+	 * @param unchanged zapisana już w cache treść, identyczna z treścią odpowiedzi
+	 * (zostanie użyta zamiast niej) lub {@code null}
+	 */
+	private static ServerResponse withSeparateBody(ServerResponse response, String etag, MessageBody unchanged) throws IOException {
+		MessageBody body = response.getBody();
+		
+		if(unchanged!=null) {
+			// ta sama treść już jest w cache - nie zapisujemy jej drugi raz
+			if(!body.sharesStorage(unchanged)) body.delete();
+			body = unchanged;
+			unchangedBodies.incrementAndGet();
+		} else if(body.getFile()==null && body.getRecord()==0 && body.length() > 0) {
+			byte[] bytes = body.getBytes();
+			body = new MessageBody(recMan.insert(bytes), bytes);
+		}
+		
+		// treść (np. potwierdzona przez serwer odpowiedzią 304) mogła czekać na skasowanie - znowu jest potrzebna
+		String key = body.getStorageKey();
+		if(key!=null) {
+			synchronized(bodyLock) {
+				pendingDiscards.remove(key);
+				// baza mogła dać nowemu rekordowi numer wcześniej skasowanego
+				if(body.getRecord()!=0) deletedRecords.remove(body.getRecord());
+			}
+		}
+		ServerResponse entry = new ServerResponse(response, null, null, body);
+		if(etag!=null) entry.getHeader().setField("ETag", etag);
+		
+		// wszystko, co potrzebne do oceny świeżości, wyliczamy od razu
+		entry.computeFreshness();
+		return entry;
+	}
+	
+	/**
+	 * Włącza lub wyłącza nadawanie własnych znaczników ({@code ETag}) odpowiedziom,
+	 * którym serwer docelowy ich nie nadał. Znacznik jest skrótem SHA-256 treści, więc
+	 * pozwala odpowiadać {@code 304 Not Modified} na {@code If-None-Match} klientów,
+	 * a po ponownym pobraniu odpowiedzi łatwo sprawdzić, czy jej treść się zmieniła
+	 * (niezmieniona treść nie jest ponownie zapisywana).
+	 * <p>
+	 * Znaczniki nie są wysyłane do serwera docelowego
+	 * (patrz {@link #isGeneratedEtag(String)}).
+	 */
+	public static void setGenerateEtags(boolean generate) {
+		generateEtags = generate;
+	}
+	
+	/**
+	 * Sprawdza czy znacznik ({@code ETag}) został nadany przez cache, a nie przez serwer.
+	 */
+	public static boolean isGeneratedEtag(String etag) {
+		return etag!=null && etag.startsWith(GENERATED_ETAG_PREFIX);
+	}
+	
+	/**
+	 * Wylicza znacznik dla odpowiedzi zapisywanej w cache, jeśli jest to włączone,
+	 * a odpowiedź nie ma własnego.
+	 * 
+	 * @return znacznik lub {@code null}
+	 */
+	private static String generateEtag(ServerResponse response) throws IOException {
+		if(!generateEtags || response.getHeader().containsField("Etag")) return null;
+		
+		MessageBody body = response.getBody();
+		if(!body.isStored()) return null;
+		
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			return null;
+		}
+		
+		File file = body.getFile();
+		if(file==null) {
+			digest.update(body.getBytes());
+		} else {
+			InputStream in = new FileInputStream(file);
+			byte[] buffer = BufferPool.acquire();
+			try {
+				int n;
+				while((n = in.read(buffer)) != -1) digest.update(buffer, 0, n);
+			} finally {
+				in.close();
+				BufferPool.release(buffer);
+			}
+		}
+		
+		// połowa skrótu w zupełności wystarczy
+		byte[] hash = digest.digest();
+		StringBuilder etag = new StringBuilder(GENERATED_ETAG_PREFIX);
+		for(int i=0; i<16; i++) {
+			etag.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		generatedEtags.incrementAndGet();
+		return etag.append('"').toString();
+	}
+	
+	/**
+	 * Odczytuje treść odpowiedzi zapisaną w osobnym rekordzie bazy.
+	 * 
+	 * @param record numer rekordu (patrz {@link MessageBody#getRecord()})
+	 */
+	static byte[] loadBody(long record) throws IOException {
+		Object bytes = recMan.fetch(record);
+		if(!(bytes instanceof byte[])) throw new IOException("Brak treści odpowiedzi w cache (rekord " + record + ")");
+		return (byte[]) bytes;
+	}
+	
+	/**
+	 * Usuwa treść odpowiedzi, która nie jest już potrzebna w cache (rekord bazy lub plik).
+	 * Jeśli jakiś wątek właśnie z niej korzysta (patrz {@link #acquireBody(MessageBody)}),
+	 * zostanie usunięta dopiero gdy skończy.
+	 */
+	private static void discardBody(MessageBody body) throws IOException {
+		String key = body.getStorageKey();
+		if(key==null) return;
+		
+		synchronized(bodyLock) {
+			if(bodyReaders.containsKey(key)) {
+				pendingDiscards.put(key, body);
+				return;
+			}
+			// kasujemy pod blokadą, żeby nikt nie zaczął czytać treści w trakcie
+			deleteBody(body);
+		}
+	}
+	
+	/**
+	 * Kasuje treść - wywoływana tylko pod {@code bodyLock}.
+	 */
+	private static void deleteBody(MessageBody body) throws IOException {
+		if(body.getRecord()!=0) {
+			recMan.delete(body.getRecord());
+			deletedRecords.add(body.getRecord());
+		} else {
+			body.delete();
+		}
+	}
+	
+	/**
+	 * Zaznacza, że bieżący wątek korzysta z treści odpowiedzi z cache, więc nie może ona
+	 * zostać skasowana (nawet jeśli odpowiedź zostanie w tym czasie zastąpiona nowszą lub
+	 * usunięta z cache), dopóki nie zostanie wywołane {@link #releaseBody(MessageBody)}.
+	 * <p>
+	 * Treść mogła zostać skasowana zanim wątek zdążył ją zarezerwować - wtedy metoda
+	 * zwraca {@code false}, a odpowiedź należy potraktować tak, jakby jej nie było w cache.
+	 * Sama treść nie jest przy tym odczytywana.
+	 * 
+	 * @return {@code true} jeśli treść jest dostępna (i została zarezerwowana)
+	 */
+	static boolean acquireBody(MessageBody body) {
+		String key = body.getStorageKey();
+		if(key==null) return true;
+		
+		// od tej chwili treść nie zostanie skasowana - sprawdzamy czy nie stało się to wcześniej
+		boolean available;
+		synchronized(bodyLock) {
+			Integer readers = bodyReaders.get(key);
+			bodyReaders.put(key, readers==null ? 1 : readers + 1);
+			available = body.getRecord()==0 || !deletedRecords.contains(body.getRecord());
+		}
+		if(available && body.getFile()!=null) available = body.isAvailable();
+		
+		if(!available) releaseBody(body);
+		return available;
+	}
+	
+	/**
+	 * Kończy korzystanie z treści zarezerwowanej przez {@link #acquireBody(MessageBody)}.
+	 * Jeśli treść została w międzyczasie usunięta z cache, a był to ostatni korzystający
+	 * z niej wątek, jest teraz kasowana.
+	 */
+	static void releaseBody(MessageBody body) {
+		String key = body.getStorageKey();
+		if(key==null) return;
+		
+		MessageBody discarded;
+		synchronized(bodyLock) {
+			Integer readers = bodyReaders.get(key);
+			if(readers==null) return;
+			if(readers > 1) {
+				bodyReaders.put(key, readers - 1);
+				return;
+			}
+			bodyReaders.remove(key);
+			
+			discarded = pendingDiscards.remove(key);
+			if(discarded==null) return;
+			try {
+				deleteBody(discarded);
+			} catch(IOException e) {
+				// nie udało się skasować - treść po prostu zostanie w bazie
+				return;
+			}
+		}
+		
+		try {
+			if(discarded.getRecord()!=0) commit();
+		} catch(IOException ignore) {}
+	}
+	
+	/**
+	 * Kończy korzystanie z odpowiedzi zwróconej przez {@link #get(RequestHeader)}
+	 * (patrz {@link #releaseBody(MessageBody)}).
+	 * 
+	 * @param response odpowiedź z cache lub {@code null}
+	 */
+	public static void release(ServerResponse response) {
+		if(response!=null) releaseBody(response.getBody());
+	}
+	
+	/**
+	 * Włącza tryb "write-behind": zmiany w cache nie są zatwierdzane na dysku od razu,
+	 * tylko przez osobny wątek, partiami. Wątek zatwierdza zmiany najpóźniej po
+	 * {@code maxDelay} milisekundach od pierwszej niezatwierdzonej zmiany, lub wcześniej,
+	 * jeśli uzbiera się ich {@code maxBatch}.
+	 * 
+	 * @param maxDelay maksymalne opóźnienie zatwierdzenia w milisekundach ({@code 0} -
+	 * każda zmiana zatwierdzana jest od razu)
+	 * @param maxBatch liczba zmian, po której zatwierdzenie następuje bez czekania
+	 */
+	public static void setWriteBehind(int maxDelay, int maxBatch) {
+		synchronized(commitLock) {
+			commitDelay = maxDelay;
+			commitBatch = Math.max(1, maxBatch);
+		}
+	}
+	
+	/**
+	 * Zatwierdza zmiany w cache - od razu albo, w trybie write-behind, zlecając to
+	 * wątkowi zatwierdzającemu.
+	 */
+	private static void commit() throws IOException {
+		changes.incrementAndGet();
+		
+		synchronized(commitLock) {
+			if(commitDelay > 0) {
+				uncommitted++;
+				if(committer==null) {
+					committer = new Thread(new Runnable() {
+						public void run() {
+							commitLoop();
+						}
+					}, "LudProxy-cache-committer");
+					committer.setDaemon(true);
+					committer.start();
+				}
+				// pierwsza zmiana rozpoczyna odliczanie, pełna partia kończy je od razu
+				if(uncommitted==1 || uncommitted>=commitBatch) commitLock.notifyAll();
+				return;
+			}
+		}
+		
+		recMan.commit();
+		commits.incrementAndGet();
+	}
+	
+	private static void commitLoop() {
+		Info info = new Info("zapis cache");
+		
+		while(true) {
+			try {
+				synchronized(commitLock) {
+					while(uncommitted==0) commitLock.wait();
+					
+					long deadline = System.currentTimeMillis() + commitDelay;
+					long left;
+					while(uncommitted < commitBatch && (left = deadline - System.currentTimeMillis()) > 0) {
+						commitLock.wait(left);
+					}
+					uncommitted = 0;
+				}
+				
+				recMan.commit();
+				commits.incrementAndGet();
+			} catch(InterruptedException e) {
+				return;
+			} catch(IOException e) {
+				info.err("Nie udało się zapisać zmian w cache: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Zwraca krótki opis stanu (do wypisywania w komunikatach).
+	 */
+	public static String getStats() {
+		return MemoryCache.getStats()
+				+ "; " + CacheEviction.getStats()
+				+ "; cache na dysku - trafienia: " + storageHits.get()
+				+ ", chybienia: " + storageMisses.get()
+				+ ", zmiany: " + changes.get()
+				+ ", zatwierdzenia: " + commits.get()
+				+ (generateEtags ? ", nadane znaczniki: " + generatedEtags.get()
+						+ ", niezmienione treści: " + unchangedBodies.get() : "");
 	}
 
 
@@ -63,7 +494,11 @@ public class Cache {
 				if(sr.getHeader().fieldEquals("Etag", response.getHeader().getField("Etag"))
 						|| sr.getHeader().fieldEquals("Last-Modified", response.getHeader().getField("Last-Modified"))) {
 					// Etag lub Last-Modified inne niż ostatnio, więc nasza kopia jest nieaktulna! Wywalamy ją!
-					storage.remove(header.getUrl()); recMan.commit();
+					ServerResponse removed = storage.remove(header.getUrl());
+					if(removed!=null) discardBody(removed.getBody());
+					commit();
+					updateMemory(header.getUrl(), null);
+					CacheEviction.removed(header.getUrl());
 				}
 			}
 			return false;
@@ -75,32 +510,72 @@ public class Cache {
 			 */
 			ServerResponse sr = storage.get(header.getUrl());
 			if(sr!=null) { 
-				sr.invalidate(); storage.put(header.getUrl(), sr); recMan.commit();
+				sr.invalidate(); storage.put(header.getUrl(), sr); commit();
+				updateMemory(header.getUrl(), sr);
 			}
 			
 			return false;
 		}
-		if(!Arrays.asList(200, 203, 300, 301, 410).contains(response.getHeader().getStatus())) {
-			// Odpowiedzi o statusach poza wymienionymi nie mogą być cachowane!
-			return false;
-		}
-		  
-		if(header.fieldContainsValue("Cache-Control", "no-cache")
-				|| header.fieldContainsValue("Cache-Control", "no-store")) return false;		
-		
-		ResponseHeader responseHeader = response.getHeader();
-		if(responseHeader.fieldContainsValue("Cache-Control", "no-cache")
-				|| responseHeader.fieldContainsValue("Cache-Control", "private")
-				|| responseHeader.fieldContainsValue("Cache-Control", "no-store")) return false;
-				
+		if(!isCacheable(header, response.getHeader())) return false;
 		
 		/* 
 		 * Doszliśmy do końca, czyli zapytanie jest GET, status odpowiedzi to
 		 * 200, 203, 300, 301, 410, a Cache-Control się nie sprzeciwia.
 		 * Uf! Możemy zapisać!
 		 */
-		storage.put(header.getUrl(), response);
-		recMan.commit();
+		String etag = generateEtag(response);
+		MessageBody unchanged = null;
+		if(etag!=null) {
+			// jeśli treść się nie zmieniła, zapisana w cache może zostać tam, gdzie jest
+			ServerResponse previous = MemoryCache.get(header.getUrl());
+			if(previous==null) previous = storage.get(header.getUrl());
+			if(previous!=null && etag.equals(previous.getHeader().getField("Etag")) && acquireBody(previous.getBody())) {
+				unchanged = previous.getBody();
+			}
+		}
+		
+		ServerResponse entry;
+		try {
+			entry = withSeparateBody(response, etag, unchanged);
+			ServerResponse old = storage.put(header.getUrl(), entry);
+			
+			// poprzednia wersja mogła mieć treść w pliku lub rekordzie, który nie jest już potrzebny
+			if(old!=null && !old.getBody().sharesStorage(entry.getBody())) discardBody(old.getBody());
+			commit();
+		} finally {
+			if(unchanged!=null) releaseBody(unchanged);
+		}
+		updateMemory(header.getUrl(), entry);
+		
+		evict(CacheEviction.stored(header.getUrl(), entry));
+		return true;
+	}
+	
+	/**
+	 * Sprawdza, na podstawie samych nagłówków, czy odpowiedź będzie mogła zostać
+	 * zapisana w cache przez {@link #put(RequestHeader, ServerResponse)}. Dzięki temu
+	 * można o tym zdecydować jeszcze przed odczytaniem treści odpowiedzi (i nie
+	 * przechowywać w pamięci treści, która i tak nie trafi do cache).
+	 * 
+	 * @param request nagłówek zapytania
+	 * @param response nagłówek odpowiedzi na to zapytanie
+	 * @return {@code true} jeśli odpowiedź może zostać zapisana w cache
+	 */
+	public static boolean isCacheable(RequestHeader request, ResponseHeader response) {
+		if(!request.getMethod().equals("GET")) return false;
+		
+		if(!Arrays.asList(200, 203, 300, 301, 410).contains(response.getStatus())) {
+			// Odpowiedzi o statusach poza wymienionymi nie mogą być cachowane!
+			return false;
+		}
+		
+		if(request.fieldContainsValue("Cache-Control", "no-cache")
+				|| request.fieldContainsValue("Cache-Control", "no-store")) return false;		
+		
+		if(response.fieldContainsValue("Cache-Control", "no-cache")
+				|| response.fieldContainsValue("Cache-Control", "private")
+				|| response.fieldContainsValue("Cache-Control", "no-store")) return false;
+		
 		return true;
 	}
 	
@@ -125,6 +600,9 @@ public class Cache {
 	 * Uwaga: odpowiedź zostanie zwrócona niezależnie od jej "świeżości", którą
 	 * można sprawdzić korzystając z {@linkplain ServerResponse#isFresh() metody isFresh()}
 	 * dostępnej w zwracanym obiekcie klasy {@link ServerResponse}.
+	 * <p>
+	 * Treść zwróconej odpowiedzi nie zostanie skasowana (nawet jeśli w międzyczasie
+	 * odpowiedź zniknie z cache), dopóki nie zostanie wywołane {@link #release(ServerResponse)}.
 	 * 
 	 * @param header nagłówek zapytania
 	 * @return wcześniejsza odpowiedź serwera pasująca do podanego nagłówka lub {@code null}.
@@ -144,12 +622,21 @@ public class Cache {
 		// Nie było w cache
 		if(response==null) return null;
 		
+		CacheEviction.used(header.getUrl());
+		
+		// nagłówek odpowiedzi z cache nie jest zmieniany, więc nie trzeba go kopiować - a pola
+		// gotowe do wysłania przygotowujemy tylko raz (w obiekcie, który może być w pamięci)
+		response.getHeaderTemplate();
+		
 		// Jeśli mamy doczynienia z HEAD to trzeba zwrócić odpowiedź bez treści!
 		if(header.getMethod().equals("HEAD")) {
-			return new ServerResponse(response, header, null, new MessageBody(new byte[0]));
+			return new ServerResponse(response, header, response.getHeader(), new MessageBody(new byte[0]));
 		}
 		
-		return new ServerResponse(response, header, null, null);
+		// treść mogła zostać skasowana razem z nowszą wersją odpowiedzi - wtedy pytamy serwer
+		if(!acquireBody(response.getBody())) return null;
+		
+		return new ServerResponse(response, header, response.getHeader(), null);
 	}
 
 	/**
@@ -161,11 +648,48 @@ public class Cache {
 	 * Wykorzystywanie adresów URL pochodzących z innych źródeł może nie działać zgodnie
 	 * z oczekiwaniami.
 	 * 
+	 * Jeśli treść odpowiedzi była zapisana w pliku, który w międzyczasie zniknął,
+	 * odpowiedź jest usuwana z cache i zwracane jest {@code null}.
+	 * 
 	 * @return odpowiedź serwera zapisaną pod podanym adresem lub {@code null} jeśli takowa
 	 * nie istnieje w cache.
 	 */
 	public static ServerResponse get(String url) {
-		return storage.get(url);
+		long version = storageVersion;
+		ServerResponse response = MemoryCache.get(url);
+		if(response==null) {
+			response = storage.get(url);
+			if(response==null) {
+				storageMisses.incrementAndGet();
+				return null;
+			}
+			storageHits.incrementAndGet();
+			if(response.getBody().isAvailable()) {
+				synchronized(memoryLock) {
+					// odpowiedź mogła zostać w międzyczasie zastąpiona nowszą - starej nie wstawiamy
+					if(storageVersion==version) MemoryCache.put(url, response);
+				}
+			}
+		}
+		
+		if(!response.getBody().isAvailable()) {
+			synchronized(memoryLock) {
+				// treść zniknęła, bo odpowiedź została zastąpiona - nowej wersji nie usuwamy
+				if(storageVersion!=version) return null;
+				
+				storageVersion++;
+				storage.remove(url);
+				MemoryCache.remove(url);
+				CacheEviction.removed(url);
+			}
+			try {
+				commit();
+			} catch (IOException e) {
+				// nie udało się zatwierdzić - trudno, i tak zwracamy null
+			}
+			return null;
+		}
+		return response;
 	}
 	
 	/**
@@ -177,10 +701,35 @@ public class Cache {
 	}
 	
 	/**
-	 * Usuwa wszystkie elementy zapisane w cache.
+	 * Usuwa wszystkie elementy zapisane w cache (razem z plikami zawierającymi duże treści).
 	 */
 	public static void clear() throws IOException {
-		storage.clear(); recMan.commit();
+		List<MessageBody> bodies = new ArrayList<MessageBody>();
+		for(String url : new ArrayList<String>(storage.keySet())) {
+			ServerResponse response = storage.get(url);
+			if(response!=null) bodies.add(response.getBody());
+		}
+		storage.clear();
+		synchronized(memoryLock) {
+			storageVersion++;
+			MemoryCache.clear();
+		}
+		CacheEviction.cleared();
+		
+		// treści, z których ktoś właśnie korzysta, zostaną skasowane gdy skończy
+		for(MessageBody body : bodies) discardBody(body);
+		recMan.commit();
+		
+		// pozostałe pliki nie należą do żadnej odpowiedzi (np. po awarii programu)
+		File[] files = MessageBody.getSpillDirectory().listFiles();
+		if(files!=null) {
+			synchronized(bodyLock) {
+				for(File f : files) {
+					String key = MessageBody.fileKey(f.getPath());
+					if(!bodyReaders.containsKey(key) && !pendingDiscards.containsKey(key)) f.delete();
+				}
+			}
+		}
 	}
 	
 }
@@ -0,0 +1,275 @@
+package pl.trammer.ludwik.ludproxy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Ograniczanie wielkości cache. Przechowuje w pamięci krótki opis każdej odpowiedzi
+ * zapisanej w {@link Cache} (wielkość, liczbę trafień, czas ostatniego użycia, koszt
+ * ponownego pobrania) i, gdy zostanie przekroczony limit liczby odpowiedzi lub ich
+ * łącznej wielkości, wskazuje które należy usunąć.
+ * <p>
+ * O kolejności usuwania decyduje wymienny obiekt {@link Policy}. Dostępne są:
+ * <ul>
+ * <li>{@link #LRU} - najpierw najdawniej używane,
+ * <li>{@link #LFU} - najpierw najrzadziej używane,
+ * <li>{@link #GDSF} - "Greedy Dual Size Frequency": najpierw te, których przechowywanie
+ * daje najmniej - rzadko używane, duże i szybkie do ponownego pobrania
+ * (koszt to {@link ServerResponse#getLatency()}).
+ * </ul>
+ * <p>
+ * Wszystkie metody klasy są statyczne.
+ *
+ * @author Ludwik Trammer
+ */
+public class CacheEviction {
+	/**
+	 * Sposób wybierania odpowiedzi do usunięcia z cache. Usuwana jest odpowiedź o najniższym
+	 * priorytecie (przy równych priorytetach - najdawniej używana).
+	 */
+	public interface Policy {
+		/**
+		 * Oblicza priorytet odpowiedzi. Wywoływane przy zapisaniu odpowiedzi w cache
+		 * i przy każdym jej użyciu.
+		 *
+		 * @param entry opis odpowiedzi
+		 * @param inflation priorytet ostatnio usuniętej odpowiedzi ({@code 0} na początku)
+		 */
+		double priority(Entry entry, double inflation);
+	}
+
+	/**
+	 * Najpierw usuwane są odpowiedzi, których najdawniej używano.
+	 */
+	public static final Policy LRU = new Policy() {
+		public double priority(Entry entry, double inflation) {
+			return entry.lastUsed;
+		}
+		public String toString() {
+			return "lru";
+		}
+	};
+
+	/**
+	 * Najpierw usuwane są odpowiedzi, których najrzadziej używano.
+	 */
+	public static final Policy LFU = new Policy() {
+		public double priority(Entry entry, double inflation) {
+			return entry.hits;
+		}
+		public String toString() {
+			return "lfu";
+		}
+	};
+
+	/**
+	 * Greedy Dual Size Frequency - priorytet to {@code L + trafienia * koszt / wielkość},
+	 * gdzie koszt to czas pobierania odpowiedzi od serwera (w milisekundach), a {@code L}
+	 * to priorytet ostatnio usuniętej odpowiedzi (dzięki temu odpowiedzi, które dawno
+	 * nie były używane, z czasem przegrywają z nowymi).
+	 */
+	public static final Policy GDSF = new Policy() {
+		public double priority(Entry entry, double inflation) {
+			return inflation + (double) entry.hits * Math.max(1, entry.cost) / Math.max(1, entry.size);
+		}
+		public String toString() {
+			return "gdsf";
+		}
+	};
+
+	/**
+	 * Opis odpowiedzi zapisanej w cache.
+	 */
+	public static class Entry {
+		final String url;
+		long size;
+		long cost;
+		long hits = 1;
+		long lastUsed;
+		double priority;
+
+		Entry(String url) {
+			this.url = url;
+		}
+
+		/**
+		 * @return wielkość odpowiedzi (nagłówek i treść) w bajtach
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return czas pobierania odpowiedzi od serwera w milisekundach
+		 */
+		public long getCost() {
+			return cost;
+		}
+
+		/**
+		 * @return liczba użyć odpowiedzi (łącznie z zapisaniem jej w cache)
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * @return numer kolejny ostatniego użycia (większy - później)
+		 */
+		public long getLastUsed() {
+			return lastUsed;
+		}
+	}
+
+	private static long maxBytes = 0;
+	private static int maxEntries = 0;
+	private static Policy policy = LRU;
+
+	/*
+	 * Wszystkie poniższe pola - dostęp tylko pod blokadą na klasie.
+	 */
+	private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private static final TreeSet<Entry> queue = new TreeSet<Entry>(new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			if(a.priority != b.priority) return a.priority < b.priority ? -1 : 1;
+			if(a.lastUsed != b.lastUsed) return a.lastUsed < b.lastUsed ? -1 : 1;
+			return a.url.compareTo(b.url);
+		}
+	});
+	private static long bytes = 0;
+	private static long clock = 0;
+	private static double inflation = 0;
+
+	private static long evicted = 0;
+	private static long evictedBytes = 0;
+
+	/**
+	 * Ustawia limity wielkości cache i sposób wybierania odpowiedzi do usunięcia.
+	 * Musi zostać wywołane zanim cache zostanie użyty po raz pierwszy.
+	 *
+	 * @param maxBytes maksymalna łączna wielkość odpowiedzi w bajtach ({@code 0} - bez limitu)
+	 * @param maxEntries maksymalna liczba odpowiedzi ({@code 0} - bez limitu)
+	 * @param policy sposób wybierania odpowiedzi do usunięcia
+	 */
+	public static synchronized void configure(long maxBytes, int maxEntries, Policy policy) {
+		CacheEviction.maxBytes = maxBytes;
+		CacheEviction.maxEntries = maxEntries;
+		CacheEviction.policy = policy;
+	}
+
+	/**
+	 * Zwraca sposób wybierania odpowiedzi do usunięcia o podanej nazwie.
+	 *
+	 * @param name {@code lru}, {@code lfu} lub {@code gdsf}
+	 * @throws IllegalArgumentException jeśli nie ma takiego sposobu
+	 */
+	public static Policy policyForName(String name) {
+		for(Policy p : new Policy[] {LRU, LFU, GDSF}) {
+			if(p.toString().equalsIgnoreCase(name)) return p;
+		}
+		throw new IllegalArgumentException("Nieznany sposób usuwania z cache: " + name + " (dostępne są: lru, lfu, gdsf)");
+	}
+
+	/**
+	 * @return {@code true} jeśli ustawiono jakikolwiek limit (w przeciwnym wypadku
+	 * odpowiedzi nie są w ogóle śledzone)
+	 */
+	public static synchronized boolean isEnabled() {
+		return maxBytes > 0 || maxEntries > 0;
+	}
+
+	/**
+	 * Odnotowuje zapisanie (lub zastąpienie) odpowiedzi w cache.
+	 *
+	 * @return adresy odpowiedzi, które należy usunąć z cache, żeby zmieścić się w limitach
+	 * (nigdy nie jest wśród nich właśnie zapisana odpowiedź)
+	 */
+	static synchronized List<String> stored(String url, ServerResponse response) {
+		List<String> victims = new ArrayList<String>();
+		if(!isEnabled()) return victims;
+
+		Entry entry = entries.get(url);
+		if(entry==null) {
+			entry = new Entry(url);
+			entries.put(url, entry);
+		} else {
+			queue.remove(entry);
+			bytes -= entry.size;
+			entry.hits++;
+		}
+
+		entry.size = response.getBody().length() + response.getHeader().getBytes().length;
+		entry.cost = Math.max(0, Math.round(response.getLatency()*1000));
+		entry.lastUsed = ++clock;
+		entry.priority = policy.priority(entry, inflation);
+		bytes += entry.size;
+		queue.add(entry);
+
+		while((maxBytes > 0 && bytes > maxBytes) || (maxEntries > 0 && entries.size() > maxEntries)) {
+			Entry victim = queue.first();
+			if(victim==entry) {
+				// została tylko właśnie zapisana odpowiedź (lub wszystkie inne są od niej ważniejsze)
+				victim = queue.higher(entry);
+				if(victim==null) break;
+			}
+			remove(victim);
+			inflation = Math.max(inflation, victim.priority);
+			evicted++;
+			evictedBytes += victim.size;
+			victims.add(victim.url);
+		}
+		return victims;
+	}
+
+	/**
+	 * Odnotowuje użycie odpowiedzi z cache.
+	 */
+	static synchronized void used(String url) {
+		Entry entry = entries.get(url);
+		if(entry==null) return;
+
+		queue.remove(entry);
+		entry.hits++;
+		entry.lastUsed = ++clock;
+		entry.priority = policy.priority(entry, inflation);
+		queue.add(entry);
+	}
+
+	/**
+	 * Odnotowuje usunięcie odpowiedzi z cache (z innego powodu niż brak miejsca).
+	 */
+	static synchronized void removed(String url) {
+		Entry entry = entries.get(url);
+		if(entry!=null) remove(entry);
+	}
+
+	/**
+	 * Odnotowuje usunięcie wszystkich odpowiedzi z cache.
+	 */
+	static synchronized void cleared() {
+		entries.clear();
+		queue.clear();
+		bytes = 0;
+		inflation = 0;
+	}
+
+	private static void remove(Entry entry) {
+		queue.remove(entry);
+		entries.remove(entry.url);
+		bytes -= entry.size;
+	}
+
+	/**
+	 * Zwraca krótki opis stanu (do wypisywania w komunikatach).
+	 */
+	public static synchronized String getStats() {
+		if(!isEnabled()) return "limit cache - brak";
+		return "limit cache (" + policy + ") - obiekty: " + entries.size()
+				+ (maxEntries > 0 ? "/" + maxEntries : "")
+				+ ", zajęte: " + bytes/1024 + (maxBytes > 0 ? "/" + maxBytes/1024 : "") + " KiB"
+				+ ", usunięte: " + evicted + " (" + evictedBytes/1024 + " KiB)";
+	}
+}
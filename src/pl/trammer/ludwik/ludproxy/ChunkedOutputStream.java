@@ -0,0 +1,150 @@
+package pl.trammer.ludwik.ludproxy;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Strumień wyjściowy kodujący przekazywane przez niego dane w formacie
+ * Transfer Encoding {@code chunked} z {@code HTTP 1.1}.
+ * <p>
+ * Dane są gromadzone w buforze (z {@link BufferPool}) i wysyłane jako jeden
+ * fragment ("chunk") dopiero gdy bufor się zapełni lub zostanie wywołana metoda
+ * {@link #flush()}, więc wiele małych zapisów daje kilka dużych fragmentów. Nagłówek fragmentu zapisywany
+ * jest w tym samym buforze, tuż przed danymi, dzięki czemu cały fragment trafia
+ * do strumienia docelowego jednym wywołaniem {@code write()}, bez tworzenia
+ * żadnych dodatkowych obiektów.
+ * <p>
+ * Zakończenie wiadomości (fragment o długości 0) wysyła {@link #finish()}, a jeśli
+ * przekazywanie treści się nie powiodło, bufor trzeba oddać wywołując {@link #abort()}.
+ * Zamknięcie tego strumienia nie zamyka strumienia docelowego.
+ *
+ * @author Ludwik Trammer
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+	/**
+	 * Miejsce na nagłówek fragmentu (do 8 cyfr szesnastkowych i CR+LF).
+	 */
+	private static final int HEADER_SPACE = 10;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+	private static final byte[] CRLF = "\r\n".getBytes();
+
+	private byte[] buf;
+	private final byte[] header = new byte[HEADER_SPACE];
+	private int count = 0;
+	private boolean finished = false;
+
+	/**
+	 * Tworzy strumień korzystający z bufora z {@link BufferPool} (fragmenty są więc
+	 * niewiele mniejsze niż {@link BufferPool#getBufferSize()}). Bufor wraca do puli
+	 * po wywołaniu {@link #finish()}.
+	 *
+	 * @param out strumień docelowy
+	 */
+	public ChunkedOutputStream(OutputStream out) {
+		super(out);
+		buf = BufferPool.acquire();
+	}
+
+	public void write(int b) throws IOException {
+		if(HEADER_SPACE + count == buf.length - 2) writeChunk();
+		buf[HEADER_SPACE + count++] = (byte) b;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		int capacity = buf.length - 2 - HEADER_SPACE;
+
+		if(count==0 && len >= capacity) {
+			// duży blok przy pustym buforze - nie ma sensu go kopiować
+			int start = writeHeader(header, header.length, len);
+			out.write(header, start, header.length - start);
+			out.write(b, off, len);
+			out.write(CRLF);
+			return;
+		}
+
+		while(len > 0) {
+			int n = Math.min(len, capacity - count);
+			System.arraycopy(b, off, buf, HEADER_SPACE + count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if(count==capacity) writeChunk();
+		}
+	}
+
+	/**
+	 * Wysyła zgromadzone dane jako jeden fragment (jeśli jakieś są) i opróżnia
+	 * strumień docelowy.
+	 */
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * Wysyła zgromadzone dane oraz fragment o długości 0, oznaczający koniec wiadomości.
+	 * Kolejne wywołania nic nie robią. Po zakończeniu wiadomości nie można już nic zapisywać.
+	 */
+	public void finish() throws IOException {
+		if(finished) return;
+		try {
+			writeChunk();
+			out.write(LAST_CHUNK);
+		} finally {
+			finished = true;
+			releaseBuffer();
+		}
+	}
+
+	/**
+	 * Porzuca wiadomość bez wysyłania jej zakończenia i oddaje bufor do puli.
+	 * Wywoływana gdy przekazywanie treści się nie powiodło (po {@link #finish()} nic nie robi).
+	 */
+	public void abort() {
+		finished = true;
+		releaseBuffer();
+	}
+
+	private void releaseBuffer() {
+		if(buf==null) return;
+		BufferPool.release(buf);
+		buf = null;
+	}
+
+	/**
+	 * Kończy wiadomość (patrz {@link #finish()}), ale nie zamyka strumienia docelowego.
+	 */
+	public void close() throws IOException {
+		finish();
+		out.flush();
+	}
+
+	private void writeChunk() throws IOException {
+		if(count==0 || finished) return;
+
+		int start = writeHeader(buf, HEADER_SPACE, count);
+		buf[HEADER_SPACE + count] = '\r';
+		buf[HEADER_SPACE + count + 1] = '\n';
+		out.write(buf, start, HEADER_SPACE - start + count + 2);
+		count = 0;
+	}
+
+	/**
+	 * Zapisuje nagłówek fragmentu (długość szesnastkowo i CR+LF) tak, żeby kończył
+	 * się tuż przed pozycją {@code end}.
+	 *
+	 * @return pozycja, od której zaczyna się nagłówek
+	 */
+	private static int writeHeader(byte[] b, int end, int len) {
+		int i = end;
+		b[--i] = '\n';
+		b[--i] = '\r';
+		do {
+			b[--i] = HEX[len & 0xf];
+			len >>>= 4;
+		} while(len != 0);
+		return i;
+	}
+}
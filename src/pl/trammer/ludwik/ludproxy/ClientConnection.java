@@ -1,7 +1,10 @@
 package pl.trammer.ludwik.ludproxy;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 import javax.swing.SwingUtilities;
 
@@ -13,17 +16,34 @@ import pl.trammer.ludwik.ludproxy.gui.MainWindow;
  * Każdy obiekt klasy odpowiada za jedno połączenie (choć w ramach jednego połączenia,
  * a tym samym jednego wątku pomiędzy klientem i programem może zostać przesłanych
  * wiele zapytań i odpowiedzi).
+ * <p>
+ * O tym w jakim wątku zostanie wykonana obsługa połączenia decyduje
+ * {@link ConnectionExecutor}. Jeśli połączenie zostało przyjęte przez
+ * {@link SelectorLoop} wątek zajmuje się nim tylko do momentu gdy klient
+ * przestanie przysyłać zapytania - wtedy połączenie wraca do pętli zdarzeń.
  * 
  * @author Ludwik Trammer
  *
  */
-public class ClientConnection extends Thread {
+public class ClientConnection implements Runnable {
 	Socket clientSocket;
 	private static int threadCount = 0;
 	private int id;
 	private LudInputStream clientInput = null;
-	private OutputStream clientOutput = null;
+	private ResponseWriter clientOutput = null;
 	private MainWindow window;
+	private SocketChannel channel = null;
+	private SelectorLoop selectorLoop = null;
+	private ByteStore pendingInput = null;
+	
+	/**
+	 * Stan pętli zdarzeń: gdzie w {@link #pendingInput} zaczyna się nagłówek zapytania
+	 * ({@code -1} - jeszcze nie wiadomo), dokąd bufor został już przeszukany i od kiedy
+	 * klient nic nie przysłał.
+	 */
+	int headerStart = -1;
+	int headerScanned = 0;
+	long idleSince = 0;
 	
 	/**
 	 * Konstruktor otrzymuje obiekt klasy Socket symbolizujący
@@ -41,6 +61,44 @@ public class ClientConnection extends Thread {
 		id = ++threadCount;
 		this.window = window;
 	}
+	
+	/**
+	 * Konstruktor dla połączeń obsługiwanych przez pętlę zdarzeń {@link SelectorLoop}.
+	 * Obiekt zostanie przekazany do wątku obsługi dopiero gdy pętla zdarzeń
+	 * odczyta kompletny nagłówek zapytania.
+	 * 
+	 * @param channel kanał połączenia z klientem
+	 * @param loop pętla zdarzeń, do której połączenie wraca w czasie bezczynności
+	 * @param window okno GUI wyświetlające informacje o działaniu
+	 * serwera proxy (lub {@code null} jeśli program działa w trybie
+	 * "no-gui")
+	 */
+	public ClientConnection(SocketChannel channel, SelectorLoop loop, MainWindow window) {
+		this(channel.socket(), window);
+		this.channel = channel;
+		this.selectorLoop = loop;
+	}
+	
+	/**
+	 * @return kanał połączenia z klientem lub {@code null} jeśli połączenie
+	 * nie jest obsługiwane przez pętlę zdarzeń
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * Zwraca bufor, do którego pętla zdarzeń dopisuje dane odczytane od klienta
+	 * zanim połączenie trafi do wątku obsługi.
+	 */
+	ByteStore getPendingInput() {
+		if(pendingInput==null) {
+			pendingInput = new ByteStore(512);
+			headerStart = -1;
+			headerScanned = 0;
+		}
+		return pendingInput;
+	}
 
 	/**
 	 * Uruchomienie wątku obsługi klienta.
@@ -55,10 +113,18 @@ public class ClientConnection extends Thread {
 		RequestHeader requestHeader=null;
 		ServerResponse response = null;
 		ServerResponse cached = null;
+		boolean parked = false;
 
 		try {
-			clientInput = new LudInputStream(clientSocket.getInputStream());
-			clientOutput = clientSocket.getOutputStream();
+			if(selectorLoop!=null) {
+				// nagłówek zapytania (a może i coś więcej) odczytała już za nas pętla zdarzeń
+				clientInput = new LudInputStream(clientSocket.getInputStream(), pendingInput.toByteArray());
+				pendingInput = null;
+			} else {
+				clientInput = new LudInputStream(clientSocket.getInputStream());
+			}
+			if(clientOutput==null) ResponseWriter.configureSocket(clientSocket); // tylko za pierwszym razem
+			clientOutput = new ResponseWriter(clientSocket);
 
 			do {
 				requestHeader=null;
@@ -79,33 +145,58 @@ public class ClientConnection extends Thread {
 						}
 
 						cached = Cache.get(requestHeader);
+						boolean fresh = cached!=null && cached.isFresh();
+						
+						// nieświeże, ale wolno je wysłać od razu i odświeżyć w tle (stale-while-revalidate)
+						boolean stale = !fresh && cached!=null && BackgroundRevalidator.canServeStale(cached);
+						
+						if((fresh || stale) && ConditionalRequest.evaluate(requestHeader, cached.getHeader())==ConditionalRequest.PRECONDITION_FAILED) {
+							// kopia z cache nie spełnia warunków If-Match / If-Unmodified-Since - niech odpowie serwer
+							fresh = stale = false;
+						}
+						
+						CollapsedForwarding.Flight flight = null;
+						if(!fresh && !stale) {
+							flight = CollapsedForwarding.join(requestHeader);
+							if(flight!=null && !flight.isLeader()) {
+								// inny wątek już pyta serwer o ten adres - poczekajmy na niego i zajrzyjmy do cache jeszcze raz
+								info.say("Czekam aż inny wątek pobierze " + requestHeader.getUrl());
+								clientOutput.flush();
+								flight.await();
+								flight = null;
+								Cache.release(cached);
+								cached = Cache.get(requestHeader);
+								fresh = cached!=null && cached.isFresh()
+										&& ConditionalRequest.evaluate(requestHeader, cached.getHeader())!=ConditionalRequest.PRECONDITION_FAILED;
+							}
+						}
 
 						try {
-							if(cached!=null && cached.isFresh()) { // świeże w cache
+							if(fresh || stale) { // świeże w cache (lub nieświeże, ale można je wysłać)
 									info.say("Znalazłem " + requestHeader.getUrl() + " w cache!");
 									
-									if((requestHeader.containsField("If-Match") || requestHeader.containsField("Etag")) && requestHeader.fieldEquals("If-Match", cached.getHeader().getField("Etag"))
-											&& requestHeader.fieldEquals("If-Modified-Since", cached.getHeader().getField("Last-Modified"))) {
-										/* 
-										 * Jest świeże w cache, klient zapytał warunkowo i ten warunek się zgadza.
-										 * Odpowiadamy więc 304 Not Modified!
-										 */
-										clientOutput.write(cached.getHeader()
-												.newForRetransmission(cached)
-												.setStatus(304)
-												.setStatusDescription("Not Modified")
-												.getBytes());
-									} else { // jest świeże w cache, bez warunku, odpowiadamy 200 z cache
-										clientOutput.write(cached.getHeader().newForRetransmission(cached).getBytes());
-										clientOutput.write(cached.getBody().getBytes());
+									if(stale) {
+										// wysyłamy nieświeżą kopię, a odświeżymy ją w tle
+										sendCached(requestHeader, cached, "110 LudProxy \"Response is stale\"");
+										BackgroundRevalidator.schedule(requestHeader);
+									} else {
+										sendCached(requestHeader, cached, null);
 									}
 
 							} else { 
 								info.say("Proszę " + requestHeader.getHost() + " o " + requestHeader.getPath());
 								
+								// wcześniejsze odpowiedzi (na zapytania wysłane jednym ciągiem) nie muszą czekać na serwer
+								clientOutput.flush();
+								
 								// przekazujemy cached, jeśli jest to postaramy się zrobić z tego zapytanie warunkowe
 								response = new ServerResponse(requestHeader, clientInput, clientOutput, cached);
 								
+								if(response.getOriginError()!=null) {
+									// serwer nie działa, ale klient dostał kopię z cache (stale-if-error)
+									info.err(response.getOriginError().getMessage() + " Wysłałem klientowi kopię z cache.");
+								}
+								
 								// przeslij do wyswietlenia w GUI
 								if(window!=null) {
 									final ServerResponse tmp_response = response;
@@ -123,6 +214,12 @@ public class ClientConnection extends Thread {
 						} catch (LudInputStream.OutputStreamClosed e) {
 							info.err("Klient przedwcześnie zakończył połączenie!");
 							break;
+						} finally {
+							// jeśli to my pytaliśmy serwer, inne wątki mogą już zajrzeć do cache
+							if(flight!=null) flight.finish();
+							
+							// treść z cache nie jest już nam potrzebna (może zostać skasowana)
+							Cache.release(cached);
 						}
 
 					} catch(HttpError e) {
@@ -140,18 +237,178 @@ public class ClientConnection extends Thread {
 					info.err(e.getMessage());
 					clientOutput.write(e.getErrorResponseAsBytes(requestHeader, (response==null ? null : response.getHeader())));
 				}
+				
+				// jeśli klient przysłał już kolejne zapytanie, odpowiedź może poczekać i zostać wysłana razem z następną
+				if(clientInput.available()==0) clientOutput.flush();
+				
+				if(selectorLoop!=null && requestHeader!=null && requestHeader.keepAlive() && clientInput.available()==0) {
+					// klient nie przysłał jeszcze kolejnego zapytania, czekanie na nie zostawiamy pętli zdarzeń
+					parked = true;
+					break;
+				}
 
 			} while(requestHeader!=null && requestHeader.keepAlive() && clientSocket.isConnected());
-			info.say("Kończę wątek.");
+			info.say(parked ? "Połączenie wraca do pętli zdarzeń." : "Kończę wątek.");
 
 		} catch (IOException e) {
 			info.err("Problem z połączeniem. Kończę wątek.");
 		} finally {
-			try {
-				clientInput.close();
-				clientOutput.close();
-				clientSocket.close();
-			} catch (IOException ignore) {}
+			if(parked) {
+				// bufor jest pusty, a czekające połączenie go nie potrzebuje
+				clientInput.releaseBuffer();
+				selectorLoop.park(this);
+			} else {
+				try {
+					clientInput.close();
+					clientOutput.close();
+					clientSocket.close();
+				} catch (IOException ignore) {}
+			}
+		}
+	}
+	
+	/**
+	 * Wysyła klientowi odpowiedź z cache. Jeśli klient zapytał warunkowo, a warunek
+	 * jest spełniony, wysyłana jest odpowiedź 304 Not Modified (bez treści). Jeśli klient
+	 * zapytał o fragmenty treści ({@code Range}), wysyłane są tylko one
+	 * (patrz {@link #sendCachedRanges(ServerResponse, String, List)}).
+	 * <p>
+	 * Większość nagłówka jest przygotowana wcześniej (patrz {@link ServerResponse#getHeaderTemplate()}),
+	 * dopisywane są tylko pola zależne od zapytania. Nagłówek i treść trzymana w pamięci
+	 * są wysyłane razem, jednym zapisem.
+	 * 
+	 * @param requestHeader nagłówek zapytania klienta
+	 * @param cached odpowiedź z cache
+	 * @param warning wartość nagłówka {@code Warning}, który zostanie dodany do odpowiedzi
+	 * (np. informacja, że odpowiedź nie jest świeża), lub {@code null}
+	 */
+	private void sendCached(RequestHeader requestHeader, ServerResponse cached, String warning) throws IOException, HttpError {
+		ResponseHeader cachedHeader = cached.getHeader();
+		boolean notModified = ConditionalRequest.evaluate(requestHeader, cachedHeader)==ConditionalRequest.NOT_MODIFIED;
+		
+		if(!notModified) {
+			List<RangeRequest.Range> ranges = RangeRequest.select(requestHeader, cached);
+			if(ranges!=null) {
+				sendCachedRanges(cached, warning, ranges);
+				return;
+			}
+		}
+		
+		byte[] fields = cached.getHeaderTemplate();
+		if(fields==null) {
+			sendCachedHeader(cached, warning, notModified);
+			return;
+		}
+		
+		StringBuilder head = new StringBuilder(160);
+		if(notModified) {
+			/* 
+			 * Jest w cache, klient zapytał warunkowo i ten warunek się zgadza.
+			 * Odpowiadamy więc 304 Not Modified!
+			 */
+			head.append("HTTP/1.1 304 Not Modified\r\n");
+		} else {
+			head.append("HTTP/1.1 ").append(cachedHeader.getStatus()).append(' ').append(cachedHeader.status_desc).append("\r\n");
+		}
+		
+		StringBuilder tail = new StringBuilder(96);
+		tail.append("Connection: ").append(requestHeader.keepAlive() ? "Keep-Alive" : "close").append("\r\n");
+		tail.append("Age: ").append(cached.getAge()).append("\r\n");
+		if(!cachedHeader.containsField("Date")) tail.append("Date: ").append(HttpDate.formatNow()).append("\r\n");
+		if(warning!=null) tail.append("Warning: ").append(warning).append("\r\n");
+		if(cachedHeader.getStatus()==200 && !cachedHeader.containsField("Accept-Ranges")) tail.append("Accept-Ranges: bytes\r\n");
+		tail.append("\r\n");
+		
+		MessageBody body = cached.getBody();
+		boolean bodyInMemory = !notModified && body.getFile()==null;
+		
+		clientOutput.write(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)), ByteBuffer.wrap(fields),
+				ByteBuffer.wrap(tail.toString().getBytes(StandardCharsets.ISO_8859_1)),
+				ByteBuffer.wrap(bodyInMemory ? body.getBytes() : new byte[0]));
+		
+		if(!notModified && !bodyInMemory) body.writeTo(clientOutput, clientSocket.getChannel());
+	}
+	
+	/**
+	 * Wysyła klientowi fragmenty treści odpowiedzi z cache - jako odpowiedź
+	 * {@code 206 Partial Content} (dla kilku zakresów typu {@code multipart/byteranges})
+	 * lub, jeśli żaden zakres nie mieści się w treści, {@code 416 Range Not Satisfiable}.
+	 * Treść zapisana w pliku jest odczytywana tylko w podanych zakresach. Treść trzymana
+	 * w rekordzie bazy cache jest odczytywana w całości (baza nie pozwala odczytać części
+	 * rekordu), ale są to treści nie większe niż próg zapisywania do plików
+	 * (patrz {@link MessageBody#setSpillThreshold(long)}).
+	 * 
+	 * @param cached odpowiedź z cache
+	 * @param warning wartość nagłówka {@code Warning} lub {@code null}
+	 * @param ranges zakresy wybrane przez {@link RangeRequest#select(RequestHeader, ServerResponse)}
+	 */
+	private void sendCachedRanges(ServerResponse cached, String warning, List<RangeRequest.Range> ranges) throws IOException, HttpError {
+		MessageBody body = cached.getBody();
+		long total = body.totalLength();
+		
+		ResponseHeader header = cached.getHeader().newForRetransmission(cached);
+		if(warning!=null) header.appenedField("Warning", warning);
+		header.removeField("Transfer-Encoding");
+		if(!header.containsField("Accept-Ranges")) header.setField("Accept-Ranges", "bytes");
+		
+		if(ranges.isEmpty()) {
+			clientOutput.write(header
+					.setStatus(416)
+					.setStatusDescription("Range Not Satisfiable")
+					.setField("Content-Range", "bytes */" + total)
+					.setField("Content-Length", "0")
+					.getBytes());
+			return;
+		}
+		
+		header.setStatus(206).setStatusDescription("Partial Content");
+		RangeRequest.served();
+		
+		if(ranges.size()==1) {
+			RangeRequest.Range range = ranges.get(0);
+			header.setField("Content-Range", range.toContentRange(total));
+			header.setField("Content-Length", range.length() + "");
+			clientOutput.write(header.getBytes());
+			body.writeTo(clientOutput, clientSocket.getChannel(), range.getFirst(), range.length());
+			return;
+		}
+		
+		String boundary = RangeRequest.newBoundary();
+		String type = cached.getHeader().getField("Content-Type");
+		byte[][] parts = new byte[ranges.size()][];
+		byte[] closing = RangeRequest.closing(boundary).getBytes(StandardCharsets.ISO_8859_1);
+		long length = closing.length;
+		for(int i=0; i<parts.length; i++) {
+			parts[i] = RangeRequest.partHeader(boundary, type, ranges.get(i), total).getBytes(StandardCharsets.ISO_8859_1);
+			length += parts[i].length + ranges.get(i).length();
+		}
+		
+		header.setField("Content-Type", "multipart/byteranges; boundary=" + boundary);
+		header.setField("Content-Length", length + "");
+		clientOutput.write(header.getBytes());
+		for(int i=0; i<parts.length; i++) {
+			clientOutput.write(parts[i]);
+			body.writeTo(clientOutput, clientSocket.getChannel(), ranges.get(i).getFirst(), ranges.get(i).length());
 		}
+		clientOutput.write(closing);
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Wysyła klientowi odpowiedź z cache, której nagłówka nie dało się przygotować wcześniej.
+	 */
+	private void sendCachedHeader(ServerResponse cached, String warning, boolean notModified) throws IOException, HttpError {
+		ResponseHeader header = cached.getHeader().newForRetransmission(cached);
+		if(warning!=null) header.appenedField("Warning", warning);
+		
+		if(notModified) {
+			clientOutput.write(header
+					.setStatus(304)
+					.setStatusDescription("Not Modified")
+					.getBytes());
+		} else { // bez warunku, odpowiadamy 200 z cache
+			clientOutput.write(header.getBytes());
+			cached.getBody().writeTo(clientOutput, clientSocket.getChannel());
+		}
+	}
+	
+}
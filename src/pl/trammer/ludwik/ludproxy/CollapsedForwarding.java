@@ -0,0 +1,125 @@
+package pl.trammer.ludwik.ludproxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Klasa pozwalająca "sklejać" jednoczesne zapytania o ten sam adres URL, którego
+ * nie ma w cache (lub jest nieświeży), tak by do serwera docelowego trafiło
+ * tylko jedno z nich.
+ * <p>
+ * Pierwszy wątek, który zgłosi się po dany adres ({@linkplain Flight#isLeader() "lider"})
+ * pobiera go z serwera (lub wykonuje zapytanie warunkowe), a pozostałe czekają aż
+ * skończy. Po tym czasie mogą skorzystać z odpowiedzi, którą lider umieścił w cache.
+ * Jeśli odpowiedź nie trafiła do cache (np. bo serwer tego zabronił) czekające wątki
+ * pytają serwer same.
+ * <p>
+ * Wszystkie metody klasy są statyczne.
+ *
+ * @author Ludwik Trammer
+ */
+public class CollapsedForwarding {
+	/**
+	 * Jak długo (w milisekundach) wątek czeka na lidera, zanim sam zapyta serwer.
+	 */
+	private static final long MAX_WAIT = 30*1000;
+
+	private static final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+	private static final AtomicInteger collapsed = new AtomicInteger();
+
+	/**
+	 * Zgłasza chęć pobrania zasobu z serwera.
+	 * <p>
+	 * Jeśli zwrócony obiekt {@link Flight} wskazuje, że wątek jest liderem, musi on
+	 * po zakończeniu pobierania (również nieudanego) wywołać {@link Flight#finish()}.
+	 * W przeciwnym wypadku wątek powinien poczekać na lidera za pomocą
+	 * {@link Flight#await()} i ponownie zajrzeć do cache.
+	 *
+	 * @param request nagłówek zapytania
+	 * @return obiekt reprezentujący pobieranie zasobu lub {@code null} jeśli zapytanie
+	 * nie może być połączone z innymi (np. nie jest zapytaniem {@code GET} albo klient
+	 * zażądał odpowiedzi prosto od serwera)
+	 */
+	public static Flight join(RequestHeader request) {
+		if(!isCollapsible(request)) return null;
+
+		String url = request.getUrl();
+		Flight flight = new Flight(url);
+		Flight existing = flights.putIfAbsent(url, flight);
+
+		if(existing==null) return flight;
+
+		collapsed.incrementAndGet();
+		return existing.follower();
+	}
+
+	/**
+	 * Sprawdza czy odpowiedź na zapytanie może pochodzić z cache (więc i od innego wątku).
+	 */
+	private static boolean isCollapsible(RequestHeader request) {
+		if(!request.getMethod().equals("GET")) return false;
+		if(request.containsField("Range") || request.containsField("Authorization")) return false;
+		if(request.fieldContainsValue("Pragma", "no-cache") || request.fieldContainsValue("Cache-Control", "no-cache")) return false;
+		if("0".equals(request.getCacheControlValue("max-age"))) return false;
+		return true;
+	}
+
+	/**
+	 * @return liczba zapytań, które zamiast pytać serwer poczekały na inne zapytanie
+	 */
+	public static int getCollapsedCount() {
+		return collapsed.get();
+	}
+
+	/**
+	 * Trwające pobieranie danego adresu z serwera.
+	 */
+	public static class Flight {
+		private final String url;
+		private final CountDownLatch done;
+		private final boolean leader;
+
+		private Flight(String url) {
+			this(url, new CountDownLatch(1), true);
+		}
+
+		private Flight(String url, CountDownLatch done, boolean leader) {
+			this.url = url;
+			this.done = done;
+			this.leader = leader;
+		}
+
+		private Flight follower() {
+			return new Flight(url, done, false);
+		}
+
+		/**
+		 * @return {@code true} jeśli bieżący wątek ma pobrać zasób z serwera,
+		 * {@code false} jeśli ma poczekać na wątek, który już to robi
+		 */
+		public boolean isLeader() {
+			return leader;
+		}
+
+		/**
+		 * Czeka aż lider skończy pobieranie zasobu (ale nie dłużej niż 30 sekund).
+		 */
+		public void await() {
+			try {
+				done.await(MAX_WAIT, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Informuje czekające wątki, że lider skończył pobieranie zasobu.
+		 */
+		public void finish() {
+			if(!leader) return;
+			flights.remove(url, this);
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package pl.trammer.ludwik.ludproxy;
+
+/**
+ * Obsługa zapytań warunkowych ({@code If-None-Match}, {@code If-Modified-Since},
+ * {@code If-Match}, {@code If-Unmodified-Since}) w obie strony:
+ * <ul>
+ * <li>przy odpowiadaniu klientom z cache - {@link #evaluate(RequestHeader, ResponseHeader)}
+ * sprawdza czy zamiast treści wystarczy odpowiedź {@code 304 Not Modified},
+ * <li>przy odświeżaniu odpowiedzi z cache - {@link #addValidators(RequestHeader, RequestHeader, ResponseHeader)}
+ * dodaje do zapytania do serwera warunki (łącząc je z warunkami klienta), a
+ * {@link #validates(ResponseHeader, ResponseHeader, boolean)} sprawdza czy odpowiedź
+ * {@code 304} serwera potwierdza aktualność kopii z cache.
+ * </ul>
+ * <p>
+ * Znaczniki ({@code ETag}) porównywane są zgodnie z RFC 7232: dla {@code If-None-Match}
+ * "słabo" (przedrostek {@code W/} nie ma znaczenia), a dla {@code If-Match} "mocno"
+ * (słabe znaczniki nigdy nie pasują). Wartość {@code *} pasuje do każdej istniejącej odpowiedzi.
+ * <p>
+ * Wszystkie metody klasy są statyczne.
+ *
+ * @author Ludwik Trammer
+ */
+public class ConditionalRequest {
+	/**
+	 * Warunki są spełnione (lub ich nie ma) - należy wysłać całą odpowiedź.
+	 */
+	public static final int SEND = 200;
+
+	/**
+	 * Klient ma już aktualną wersję - wystarczy odpowiedź {@code 304 Not Modified}.
+	 */
+	public static final int NOT_MODIFIED = 304;
+
+	/**
+	 * Warunek {@code If-Match} lub {@code If-Unmodified-Since} nie jest spełniony.
+	 */
+	public static final int PRECONDITION_FAILED = 412;
+
+	/**
+	 * Sprawdza warunki z zapytania klienta względem odpowiedzi (zwykle z cache), zgodnie
+	 * z kolejnością z RFC 7232 (6): najpierw {@code If-Match} (lub {@code If-Unmodified-Since}),
+	 * potem {@code If-None-Match} (lub, jeśli go nie ma, {@code If-Modified-Since}).
+	 * <p>
+	 * Jeśli odpowiedź nie ma pola {@code Last-Modified}, {@code If-Modified-Since} porównywane
+	 * jest z jej datą ({@code Date}), tak jak pozwala na to RFC 7234 (4.3.2). Daty z przyszłości
+	 * są ignorowane.
+	 *
+	 * @param request zapytanie klienta
+	 * @param response odpowiedź, której dotyczą warunki
+	 * @return {@link #SEND}, {@link #NOT_MODIFIED} lub {@link #PRECONDITION_FAILED}
+	 */
+	public static int evaluate(RequestHeader request, ResponseHeader response) {
+		// warunki dotyczą tylko "udanych" odpowiedzi
+		if(response.getStatus()/100!=2) return SEND;
+
+		String etag = response.getField("Etag");
+
+		if(request.containsField("If-Match")) {
+			if(!matches(request.getField("If-Match"), etag, false)) return PRECONDITION_FAILED;
+		} else if(request.containsField("If-Unmodified-Since")) {
+			HttpDate since = validDate(request, "If-Unmodified-Since");
+			HttpDate modified = response.getFieldAsDate("Last-Modified");
+			if(since!=null && (modified==null || modified.getTime() > since.getTime())) return PRECONDITION_FAILED;
+		}
+
+		boolean safe = request.getMethod().equals("GET") || request.getMethod().equals("HEAD");
+
+		if(request.containsField("If-None-Match")) {
+			if(matches(request.getField("If-None-Match"), etag, true)) return safe ? NOT_MODIFIED : PRECONDITION_FAILED;
+		} else if(safe && request.containsField("If-Modified-Since")) {
+			HttpDate since = validDate(request, "If-Modified-Since");
+			HttpDate modified = response.getFieldAsDate("Last-Modified");
+			if(modified==null) modified = response.getFieldAsDate("Date");
+			if(since!=null && modified!=null && modified.getTime() <= since.getTime()) return NOT_MODIFIED;
+		}
+
+		return SEND;
+	}
+
+	/**
+	 * Sprawdza czy lista znaczników z pola {@code If-Match} lub {@code If-None-Match}
+	 * zawiera podany znacznik.
+	 *
+	 * @param list wartość pola (lista znaczników lub {@code *})
+	 * @param etag znacznik odpowiedzi lub {@code null}, jeśli odpowiedź go nie ma
+	 * @param weak {@code true} dla porównania "słabego" (If-None-Match),
+	 * {@code false} dla "mocnego" (If-Match)
+	 */
+	public static boolean matches(String list, String etag, boolean weak) {
+		if(list.trim().equals("*")) return true;
+		if(etag==null || (!weak && isWeak(etag))) return false;
+
+		String opaque = opaque(etag);
+		int pos = 0, length = list.length();
+		while(pos < length) {
+			// pomijamy separatory
+			while(pos < length && (list.charAt(pos)==',' || list.charAt(pos)<=' ')) pos++;
+			if(pos==length) break;
+
+			int start = pos;
+			boolean tagWeak = list.startsWith("W/", pos);
+			if(tagWeak) pos += 2;
+
+			// znacznik to tekst w cudzysłowie (może zawierać przecinki)
+			if(pos < length && list.charAt(pos)=='"') {
+				int end = list.indexOf('"', pos + 1);
+				pos = (end==-1 ? length : end + 1);
+			} else {
+				while(pos < length && list.charAt(pos)!=',') pos++;
+			}
+
+			String tag = list.substring(start, pos).trim();
+			if((weak || !tagWeak) && opaque(tag).equals(opaque)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Dodaje do zapytania wysyłanego do serwera warunki, dzięki którym, jeśli
+	 * odpowiedź z cache jest wciąż aktualna, serwer odpowie krótkim {@code 304 Not Modified}.
+	 * <p>
+	 * Znacznik odpowiedzi z cache jest dopisywany do znaczników przysłanych przez klienta
+	 * w {@code If-None-Match} (serwer odpowie więc {@code 304} jeśli pasuje którykolwiek z nich).
+	 * Data {@code Last-Modified} trafia do {@code If-Modified-Since} tylko jeśli klient nie
+	 * przysłał własnych znaczników (w przeciwnym wypadku serwer i tak by ją zignorował).
+	 * Warunki {@code If-Match}, {@code If-Unmodified-Since} i {@code If-Range} klienta
+	 * pozostawiane są bez zmian, a odpowiedź z cache nie jest wtedy sprawdzana.
+	 * Znaczniki nadane przez {@link Cache} nie są wysyłane.
+	 *
+	 * @param outgoing zapytanie do serwera (zmieniane)
+	 * @param request zapytanie klienta
+	 * @param cached odpowiedź z cache
+	 * @return {@code true} jeśli odpowiedź {@code 304} serwera będzie mogła potwierdzić
+	 * aktualność odpowiedzi z cache (patrz {@link #validates(ResponseHeader, ResponseHeader, boolean)})
+	 */
+	static boolean addValidators(RequestHeader outgoing, RequestHeader request, ResponseHeader cached) {
+		if(request.containsField("If-Match") || request.containsField("If-Unmodified-Since")
+				|| request.containsField("If-Range")) return false;
+
+		String clientTags = request.getField("If-None-Match");
+		if(clientTags!=null && clientTags.trim().equals("*")) return false;
+
+		String etag = cached.getField("Etag");
+		String modified = cached.getField("Last-Modified");
+		boolean validating = false;
+		
+		// znacznika nadanego przez cache serwer i tak nie rozpozna
+		if(Cache.isGeneratedEtag(etag)) etag = null;
+
+		if(etag!=null) {
+			if(clientTags==null) {
+				outgoing.setField("If-None-Match", etag);
+			} else if(!matches(clientTags, etag, true)) {
+				outgoing.setField("If-None-Match", clientTags + ", " + etag);
+			}
+			validating = true;
+		}
+
+		if(modified!=null && clientTags==null) {
+			// data klienta porównamy sami, z datą odpowiedzi z cache
+			outgoing.setField("If-Modified-Since", modified);
+			validating = true;
+		}
+
+		return validating;
+	}
+
+	/**
+	 * Sprawdza czy odpowiedź {@code 304} serwera na zapytanie przygotowane przez
+	 * {@link #addValidators(RequestHeader, RequestHeader, ResponseHeader)} dotyczy
+	 * odpowiedzi z cache (a nie tylko którejś z wersji, którą ma klient).
+	 *
+	 * @param notModified odpowiedź serwera
+	 * @param cached odpowiedź z cache
+	 * @param clientTags czy w zapytaniu były również znaczniki od klienta
+	 */
+	static boolean validates(ResponseHeader notModified, ResponseHeader cached, boolean clientTags) {
+		String etag = notModified.getField("Etag");
+		if(etag!=null) {
+			String cachedEtag = cached.getField("Etag");
+			return cachedEtag!=null && opaque(etag).equals(opaque(cachedEtag));
+		}
+		// bez znacznika nie wiadomo, która z wersji pasowała - chyba, że była tylko nasza
+		return !clientTags;
+	}
+
+	private static boolean isWeak(String etag) {
+		return etag.startsWith("W/");
+	}
+
+	private static String opaque(String etag) {
+		return isWeak(etag) ? etag.substring(2) : etag;
+	}
+
+	/**
+	 * Zwraca datę z pola zapytania, jeśli jest poprawna i nie pochodzi z przyszłości.
+	 */
+	private static HttpDate validDate(RequestHeader request, String field) {
+		HttpDate date = request.getFieldAsDate(field);
+		if(date==null || date.getTime() > System.currentTimeMillis()) return null;
+		return date;
+	}
+}
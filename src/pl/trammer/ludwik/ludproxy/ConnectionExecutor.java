@@ -0,0 +1,181 @@
+package pl.trammer.ludwik.ludproxy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Klasa decydująca o tym w jakich wątkach wykonywana jest obsługa
+ * połączeń z klientami ({@link ClientConnection}).
+ * <p>
+ * Dostępne są trzy tryby pracy (patrz {@link Mode}):
+ * <ul>
+ * <li>{@code thread} - każde połączenie dostaje własny, nowy wątek (tak działało
+ * LudProxy od zawsze, ale przy dużej liczbie klientów kończy się to brakiem pamięci
+ * na stosy wątków),
+ * <li>{@code pool} - połączenia obsługiwane są przez pulę wątków o ograniczonym rozmiarze,
+ * a te które się nie zmieściły czekają w kolejce o ograniczonej długości,
+ * <li>{@code virtual} - każde połączenie dostaje własny wirtualny wątek (wymaga
+ * Javy 21 lub nowszej; na starszych wersjach używana jest pula wątków).
+ * </ul>
+ * <p>
+ * Obiekt udostępnia informacje o liczbie aktualnie obsługiwanych połączeń
+ * i długości kolejki, przydatne przy dobieraniu rozmiaru puli.
+ *
+ * @author Ludwik Trammer
+ */
+public class ConnectionExecutor {
+
+	/**
+	 * Tryby pracy opisane w dokumentacji klasy {@link ConnectionExecutor}.
+	 */
+	public enum Mode { THREAD, POOL, VIRTUAL }
+
+	private final Mode mode;
+	private final ExecutorService executor;
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger rejected = new AtomicInteger();
+
+	/**
+	 * Tworzy nowy obiekt zarządzający wątkami obsługi połączeń.
+	 *
+	 * @param mode tryb pracy
+	 * @param threads maksymalna liczba wątków w puli (istotne tylko w trybie {@code pool})
+	 * @param queueSize maksymalna liczba połączeń czekających w kolejce na wolny wątek
+	 * (istotne tylko w trybie {@code pool})
+	 */
+	public ConnectionExecutor(Mode mode, int threads, int queueSize) {
+		ExecutorService ex = null;
+
+		if(mode==Mode.VIRTUAL) {
+			ex = newVirtualThreadExecutor();
+			if(ex==null) {
+				new Info().err("Ta wersja Javy nie obsługuje wirtualnych wątków. Używam puli wątków.");
+				mode = Mode.POOL;
+			}
+		}
+
+		if(mode==Mode.POOL) {
+			final AtomicInteger threadNum = new AtomicInteger();
+			ex = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							return new Thread(r, "LudProxy-worker-" + threadNum.incrementAndGet());
+						}
+					});
+			// nieużywane wątki mogą się kończyć, pula i tak odtworzy je w razie potrzeby
+			((ThreadPoolExecutor) ex).allowCoreThreadTimeOut(true);
+		}
+
+		this.mode = mode;
+		this.executor = ex;
+	}
+
+	/**
+	 * Próbuje stworzyć (przy pomocy refleksji, bo program kompilowany jest dla starszych
+	 * wersji Javy) obiekt {@code ExecutorService} uruchamiający każde zadanie w nowym
+	 * wirtualnym wątku.
+	 *
+	 * @return nowy obiekt lub {@code null} jeśli wirtualne wątki nie są dostępne
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Zleca obsługę połączenia z klientem.
+	 *
+	 * @param connection połączenie do obsłużenia
+	 * @throws RejectedExecutionException jeśli pula wątków i kolejka są pełne
+	 */
+	public void execute(final Runnable connection) throws RejectedExecutionException {
+		Runnable task = new Runnable() {
+			public void run() {
+				running.incrementAndGet();
+				try {
+					connection.run();
+				} finally {
+					running.decrementAndGet();
+				}
+			}
+		};
+
+		try {
+			if(executor==null) {
+				new Thread(task).start();
+			} else {
+				executor.execute(task);
+			}
+		} catch(RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return tryb pracy obiektu (może się różnić od żądanego, jeśli wirtualne
+	 * wątki nie są dostępne)
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return liczba połączeń obsługiwanych w tej chwili
+	 */
+	public int getActiveCount() {
+		return running.get();
+	}
+
+	/**
+	 * @return liczba wątków istniejących w puli (w trybach {@code thread} i {@code virtual}
+	 * równa liczbie obsługiwanych połączeń)
+	 */
+	public int getPoolSize() {
+		if(executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getPoolSize();
+		return running.get();
+	}
+
+	/**
+	 * @return maksymalna liczba wątków w puli lub {@code -1} jeśli nie jest ograniczona
+	 */
+	public int getMaxPoolSize() {
+		if(executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+		return -1;
+	}
+
+	/**
+	 * @return liczba połączeń czekających w kolejce na wolny wątek
+	 */
+	public int getQueueDepth() {
+		if(executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getQueue().size();
+		return 0;
+	}
+
+	/**
+	 * @return liczba połączeń odrzuconych z powodu zapełnienia kolejki
+	 */
+	public int getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Zwraca krótki opis stanu obiektu (do wypisywania w komunikatach).
+	 */
+	public String toString() {
+		return "wątki: " + mode.toString().toLowerCase()
+				+ ", aktywne: " + getActiveCount()
+				+ (getMaxPoolSize()!=-1 ? "/" + getMaxPoolSize() : "")
+				+ ", w kolejce: " + getQueueDepth()
+				+ ", odrzucone: " + getRejectedCount();
+	}
+}
@@ -0,0 +1,254 @@
+package pl.trammer.ludwik.ludproxy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pamięć podręczna adresów IP serwerów docelowych, żeby nie pytać serwera DNS
+ * przy każdym zapytaniu.
+ * <p>
+ * Znalezione adresy pamiętane są przez określony czas, a informacje o tym, że
+ * dana nazwa nie istnieje - przez inny (zwykle krótszy) czas. Jeśli adres, któremu
+ * kończy się ważność, jest nadal używany, zostanie odświeżony w tle, zanim jeszcze
+ * wygaśnie. Jeśli kilka wątków jednocześnie pyta o tę samą nazwę, do serwera DNS
+ * trafia tylko jedno zapytanie, na którego wynik czekają wszystkie.
+ * <p>
+ * Samo odpytywanie serwera DNS wykonuje obiekt {@link Resolver}, który można
+ * podmienić (np. na potrzeby testów bez dostępu do sieci).
+ * <p>
+ * Wszystkie metody klasy są statyczne.
+ *
+ * @author Ludwik Trammer
+ */
+public class DnsCache {
+	/**
+	 * Obiekt zamieniający nazwę serwera na jego adres IP.
+	 */
+	public interface Resolver {
+		/**
+		 * @param host nazwa serwera
+		 * @return adres IP serwera
+		 * @throws UnknownHostException jeśli nazwa nie istnieje
+		 */
+		InetAddress resolve(String host) throws UnknownHostException;
+	}
+
+	/**
+	 * Domyślny {@link Resolver}, korzystający z {@code InetAddress.getByName()}.
+	 */
+	public static final Resolver SYSTEM_RESOLVER = new Resolver() {
+		public InetAddress resolve(String host) throws UnknownHostException {
+			return InetAddress.getByName(host);
+		}
+	};
+
+	/**
+	 * Maksymalna liczba zapamiętanych nazw.
+	 */
+	private static final int MAX_ENTRIES = 10000;
+
+	/**
+	 * Jaka część czasu ważności adresu musi upłynąć, żeby jego użycie spowodowało
+	 * odświeżenie w tle.
+	 */
+	private static final double REFRESH_AFTER = 0.8;
+
+	private static volatile Resolver resolver = SYSTEM_RESOLVER;
+	private static long ttl = 60*1000;
+	private static long negativeTtl = 10*1000;
+
+	private static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private static final ConcurrentHashMap<String, FutureTask<Entry>> inFlight = new ConcurrentHashMap<String, FutureTask<Entry>>();
+	private static final ConcurrentHashMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+
+	private static final AtomicInteger hits = new AtomicInteger();
+	private static final AtomicInteger misses = new AtomicInteger();
+	private static final AtomicInteger refreshes = new AtomicInteger();
+
+	private static final ThreadPoolExecutor refresher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(100),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LudProxy-dns");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * Ustawia czasy przez które pamiętane są odpowiedzi DNS. Zmiany dotyczą wszystkich wątków.
+	 *
+	 * @param ttl czas (w sekundach) przez który pamiętane są znalezione adresy
+	 * @param negativeTtl czas (w sekundach) przez który pamiętana jest informacja,
+	 * że dana nazwa nie istnieje
+	 */
+	public static void configure(int ttl, int negativeTtl) {
+		DnsCache.ttl = ttl*1000L;
+		DnsCache.negativeTtl = negativeTtl*1000L;
+	}
+
+	/**
+	 * Podmienia obiekt odpytujący serwer DNS i czyści zapamiętane adresy.
+	 *
+	 * @param r nowy obiekt {@link Resolver} (np. {@link #SYSTEM_RESOLVER})
+	 */
+	public static void setResolver(Resolver r) {
+		resolver = r;
+		clear();
+	}
+
+	/**
+	 * Zwraca adres IP serwera o podanej nazwie, jeśli to możliwe korzystając
+	 * z zapamiętanej wcześniej odpowiedzi.
+	 *
+	 * @param host nazwa serwera
+	 * @return adres IP serwera
+	 * @throws UnknownHostException jeśli nazwa nie istnieje (lub niedawno nie istniała)
+	 */
+	public static InetAddress resolve(String host) throws UnknownHostException {
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(host);
+
+		if(entry!=null && now < entry.expires) {
+			hits.incrementAndGet();
+
+			// adres jest w użyciu, a niedługo straci ważność - odświeżmy go zawczasu
+			if(entry.address!=null && now >= entry.refreshAt) refreshInBackground(host);
+		} else {
+			misses.incrementAndGet();
+			entry = lookup(host);
+		}
+
+		if(entry.address==null) throw new UnknownHostException(host);
+		return entry.address;
+	}
+
+	/**
+	 * Odpytuje serwer DNS o podaną nazwę i zapamiętuje wynik. Jeśli inny wątek
+	 * już o nią pyta, czeka na jego wynik zamiast zadawać kolejne pytanie.
+	 */
+	private static Entry lookup(final String host) {
+		FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+			public Entry call() {
+				try {
+					Entry entry;
+					try {
+						entry = new Entry(resolver.resolve(host), ttl);
+					} catch(UnknownHostException e) {
+						entry = new Entry(null, negativeTtl);
+					}
+					store(host, entry);
+					return entry;
+				} finally {
+					inFlight.remove(host);
+				}
+			}
+		});
+
+		FutureTask<Entry> running = inFlight.putIfAbsent(host, task);
+		if(running==null) {
+			running = task;
+			task.run();
+		}
+
+		boolean interrupted = false;
+		try {
+			while(true) {
+				try {
+					return running.get();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Zleca odświeżenie adresu w tle (jeśli nie jest już odświeżany).
+	 */
+	private static void refreshInBackground(final String host) {
+		if(inFlight.containsKey(host)) return;
+		// zajmujemy nazwę zanim zadanie trafi do kolejki, żeby nie kolejkować jej kilka razy
+		if(refreshing.putIfAbsent(host, Boolean.TRUE)!=null) return;
+
+		try {
+			refresher.execute(new Runnable() {
+				public void run() {
+					try {
+						refreshes.incrementAndGet();
+						lookup(host);
+					} finally {
+						refreshing.remove(host);
+					}
+				}
+			});
+		} catch(RejectedExecutionException ignore) {
+			// za dużo odświeżania naraz - adres odświeży się gdy wygaśnie
+			refreshing.remove(host);
+		}
+	}
+
+	private static void store(String host, Entry entry) {
+		if(entries.size() >= MAX_ENTRIES) {
+			// najpierw pozbywamy się nieważnych wpisów, a jeśli to nie pomoże - wszystkich
+			long now = System.currentTimeMillis();
+			Iterator<Entry> it = entries.values().iterator();
+			while(it.hasNext()) {
+				if(it.next().expires <= now) it.remove();
+			}
+			if(entries.size() >= MAX_ENTRIES) entries.clear();
+		}
+		entries.put(host, entry);
+	}
+
+	/**
+	 * Zapomina wszystkie zapamiętane adresy.
+	 */
+	public static void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Zwraca krótki opis stanu (do wypisywania w komunikatach).
+	 */
+	public static String getStats() {
+		return "DNS - z pamięci: " + hits.get()
+				+ ", zapytania: " + misses.get()
+				+ ", odświeżenia w tle: " + refreshes.get();
+	}
+
+	/**
+	 * Zapamiętana odpowiedź DNS.
+	 */
+	private static class Entry {
+		/**
+		 * Adres IP lub {@code null} jeśli nazwa nie istnieje.
+		 */
+		final InetAddress address;
+		final long expires;
+		final long refreshAt;
+
+		Entry(InetAddress address, long ttl) {
+			long now = System.currentTimeMillis();
+			this.address = address;
+			this.expires = now + ttl;
+			this.refreshAt = now + (long)(ttl*REFRESH_AFTER);
+		}
+	}
+}
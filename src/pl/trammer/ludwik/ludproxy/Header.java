@@ -2,10 +2,11 @@ package pl.trammer.ludwik.ludproxy;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import pl.trammer.ludwik.ludproxy.errors.*;
 
@@ -30,6 +31,48 @@ public abstract class Header implements java.io.Serializable {
 	 * Data i godzina otrzymania pierwszej linii nagłówka.
 	 */
 	protected HttpDate received_date;
+	
+	/**
+	 * Nazwy pól nagłówka, które proxy zna i o które pyta. Ich znormalizowane
+	 * wersje są umieszczane w {@link #NAMES} od razu przy starcie.
+	 */
+	private static final String[] KNOWN_FIELDS = {
+		"Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges",
+		"Age", "Allow", "Authorization", "Cache-Control", "Connection", "Content-Encoding",
+		"Content-Language", "Content-Length", "Content-Location", "Content-MD5", "Content-Range",
+		"Content-Type", "Cookie", "Date", "ETag", "Expect", "Expires", "From", "Host",
+		"If-Match", "If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since",
+		"Keep-Alive", "Last-Modified", "Location", "Max-Forwards", "Pragma", "Proxy-Authenticate",
+		"Proxy-Authorization", "Proxy-Connection", "Range", "Referer", "Retry-After", "Server",
+		"Set-Cookie", "TE", "Trailer", "Transfer-Encoding", "Upgrade", "User-Agent", "Vary",
+		"Via", "Warning", "WWW-Authenticate"
+	};
+	
+	/**
+	 * Maksymalna liczba zapamiętanych nazw pól spoza {@link #KNOWN_FIELDS} (klienci
+	 * mogą wysyłać dowolne nazwy, więc nie można zapamiętywać wszystkich).
+	 */
+	private static final int MAX_NAMES = 4096;
+	
+	/**
+	 * Nazwy pól w postaci, w jakiej pojawiają się w kodzie lub w wiadomościach, oraz
+	 * odpowiadające im znormalizowane (i współdzielone) nazwy.
+	 */
+	private static final Map<String, String> NAMES = new ConcurrentHashMap<String, String>();
+	
+	/**
+	 * Nazwa lokalnego komputera dodawana do pola "Via" (ustalana tylko raz).
+	 */
+	private static volatile String localhost;
+	
+	static {
+		for(String name : KNOWN_FIELDS) {
+			String normalized = toNormalForm(name).intern();
+			NAMES.put(name, normalized);
+			NAMES.put(normalized, normalized);
+			NAMES.put(name.toLowerCase(), normalized);
+		}
+	}
 
 	/**
 	 * Tworzy obiekt nagłówka na podstawie danych znajdujących się w
@@ -67,7 +110,7 @@ public abstract class Header implements java.io.Serializable {
 		
 		received_date = new HttpDate();
 		
-		setField("Date", new HttpDate().toString());
+		setField("Date", HttpDate.formatNow());
 	}
 	
 	/**
@@ -87,7 +130,7 @@ public abstract class Header implements java.io.Serializable {
 	 * Informacje o polach i ich wartościach zapisuje wewnątrz obiektu.
 	 * <p>
 	 * Zgodnie z RFC 2616 linie zaczynające się od spacji lub znaku tabulacji interpretuje
-	 * jako kontynuację wcześniejszej linii. 
+	 * jako kontynuację wcześniejszej linii. Linie, które nie zawierają dwukropka, są pomijane.
 	 * @param in strumień wejściowy
 	 * @return sam siebie
 	 */
@@ -102,9 +145,17 @@ public abstract class Header implements java.io.Serializable {
 					setField(fieldName, getField(fieldName) + " " + line.trim());
 				}
 			} else { // nowe pole
-				String[] f = line.trim().split(":\\s*", 2);
-				fieldName = f[0];
-				fieldValue = f[1];
+				int colon = line.indexOf(':');
+				if(colon==-1) continue; // to nie jest pole nagłówka
+				
+				// pomijamy białe znaki wokół nazwy i wartości
+				int nameStart = 0, valueStart = colon+1, end = line.length();
+				while(nameStart < colon && line.charAt(nameStart) <= ' ') nameStart++;
+				while(valueStart < end && line.charAt(valueStart) <= ' ') valueStart++;
+				while(end > valueStart && line.charAt(end-1) <= ' ') end--;
+				
+				fieldName = line.substring(nameStart, colon);
+				fieldValue = line.substring(valueStart, end);
 				
 				appenedField(fieldName, fieldValue);
 			}
@@ -177,7 +228,7 @@ public abstract class Header implements java.io.Serializable {
 		
 		// Usuwam nagłówki zdefiniowane jako "Hop-By-Hop"
 		for(String h : HOP_BY_HOP_FIELDS) {
-			fields.remove(h);
+			removeField(h);
 		}
 		
 		//Używamy HTTP 1.1
@@ -185,21 +236,34 @@ public abstract class Header implements java.io.Serializable {
 		protocol_version = "1.1";
 		
 		// Dodajmy lokalny komputer do pola Via
-		String localhost;
-		try {
-			localhost = InetAddress.getLocalHost().getHostName();
-		} catch (UnknownHostException e) {
-			localhost = "unknown";
-		}
+		String localhost = getLocalHostName();
 		
-		if(fields.containsKey("via")) {
-			fields.put("Via", fields.get("via") + ", 1.1 " + localhost);
+		String via = getField("Via");
+		if(via!=null) {
+			fields.put("Via", via + ", 1.1 " + localhost);
 		} else {
 			fields.put("Via", getProtocol() + " " + localhost);
 		}
 		
 	}
 	
+	/**
+	 * Zwraca nazwę lokalnego komputera. Jest ustalana przy pierwszym wywołaniu
+	 * (może to wymagać zapytania DNS), a potem zapamiętywana.
+	 */
+	private static String getLocalHostName() {
+		String name = localhost;
+		if(name==null) {
+			try {
+				name = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				name = "unknown";
+			}
+			localhost = name;
+		}
+		return name;
+	}
+	
 	/**
 	 * Statyczna metoda konsekwentnie zmieniająca wielkość znaków
 	 * w nazwach pól nagłówków {@code HTTP} na zgodną ze wzorcem.
@@ -212,22 +276,41 @@ public abstract class Header implements java.io.Serializable {
 	 * <p>
 	 * Na przykład: zarówno "nazwa-pola", "NAZWA-POLA" i "Nazwa-pola"
 	 * zostaną zwrócone jako "Nazwa-Pola".
+	 * <p>
+	 * Wyniki są zapamiętywane, więc dla nazw znanych pól (i tych, które już się
+	 * pojawiły) metoda nie tworzy żadnych nowych obiektów, a zwracany jest zawsze ten
+	 * sam obiekt {@code String}.
 	 * 
 	 * @param name tekst do znormalizowania wielkości znaków
 	 * @return wersja znormalizowna
 	 */
 	public static String normalizeFieldName(String name) {
-		name = name.trim().toLowerCase();
-		String[] parts = name.split("-");
+		String normalized = NAMES.get(name);
+		if(normalized!=null) return normalized;
 		
-		StringBuilder result = new StringBuilder(name.length());
-		for(int i=0; i < parts.length; i++) {
-			if(i>0) result.append("-");
-			result.append(Character.toUpperCase(parts[i].charAt(0)));
-			result.append(parts[i].substring(1));
+		normalized = toNormalForm(name.trim());
+		String known = NAMES.get(normalized);
+		if(known!=null) {
+			normalized = known;
+		} else if(NAMES.size() < MAX_NAMES) {
+			NAMES.put(normalized, normalized);
 		}
-		
-		return result.toString();
+		if(NAMES.size() < MAX_NAMES) NAMES.put(name, normalized);
+		return normalized;
+	}
+	
+	/**
+	 * Zmienia pierwszą literę nazwy i każdą literę po znaku "-" na wielką, a pozostałe na małe.
+	 */
+	private static String toNormalForm(String name) {
+		char[] chars = new char[name.length()];
+		boolean upper = true;
+		for(int i=0; i<chars.length; i++) {
+			char c = name.charAt(i);
+			chars[i] = upper ? Character.toUpperCase(c) : Character.toLowerCase(c);
+			upper = (c=='-');
+		}
+		return new String(chars);
 	}
 	
 	
@@ -322,7 +405,7 @@ public abstract class Header implements java.io.Serializable {
 	 * @see HttpDate
 	 */
 	public HttpDate getFieldAsDate(String f) {
-		String da = getField("f");
+		String da = getField(f);
 		if(da==null) return null;
 		HttpDate date=null;
 		try {
@@ -360,7 +443,23 @@ public abstract class Header implements java.io.Serializable {
 	 * {@code false} w pozostałych sytuacjach.
 	 */
 	public boolean fieldContainsValue(String f, String v) {
-		return Arrays.asList(getFieldAsArray(f, true)).contains(v.toLowerCase());
+		String value = getField(f);
+		if(value==null) return false;
+		
+		// przeglądamy kolejne wartości bez dzielenia tekstu i zmiany wielkości liter
+		int start = 0, length = value.length();
+		while(start <= length) {
+			int end = value.indexOf(',', start);
+			if(end==-1) end = length;
+			
+			int s = start, e = end;
+			while(s < e && value.charAt(s) <= ' ') s++;
+			while(e > s && value.charAt(e-1) <= ' ') e--;
+			if(e - s==v.length() && value.regionMatches(true, s, v, 0, e - s)) return true;
+			
+			start = end + 1;
+		}
+		return false;
 	}
 	
 	/**
@@ -391,12 +490,9 @@ public abstract class Header implements java.io.Serializable {
 	 * @see #setField(String, String)
 	 */
 	public Header appenedField(String f, String v) {
-		if(containsField(f)) {
-			fields.put(normalizeFieldName(f), getField(f) + ", " + v.trim());
-		} else {
-			fields.put(normalizeFieldName(f), v.trim());
-		}
-		
+		String name = normalizeFieldName(f);
+		String old = fields.get(name);
+		fields.put(name, old==null ? v.trim() : old + ", " + v.trim());
 		return this;
 	}
 	
@@ -432,8 +528,7 @@ public abstract class Header implements java.io.Serializable {
 		String field_value = getField(f);
 		if(field_value==null && value==null) return true;
 		if(field_value==null) return false;
-		return field_value.toLowerCase().equals(
-				value.toLowerCase());
+		return field_value.equalsIgnoreCase(value);
 	}
 
 	/**
@@ -451,11 +546,21 @@ public abstract class Header implements java.io.Serializable {
 	 * @see #fieldContainsValue(String, String)
 	 */
 	public String getCacheControlValue(String name) {
-		String[] list = getFieldAsArray("Cache-Control", true);
-		String[] esplit;
-		for(String element : list) {
-			esplit = element.split("=", 2);
-			if(esplit[0].equalsIgnoreCase(name) && esplit.length>1) return esplit[1];
+		String value = getField("Cache-Control");
+		if(value==null) return null;
+		
+		int start = 0, length = value.length();
+		while(start < length) {
+			int end = value.indexOf(',', start);
+			if(end==-1) end = length;
+			
+			while(start < end && value.charAt(start) <= ' ') start++;
+			int eq = start + name.length();
+			if(eq < end && value.charAt(eq)=='=' && value.regionMatches(true, start, name, 0, name.length())) {
+				return value.substring(eq + 1, end).trim().toLowerCase();
+			}
+			
+			start = end + 1;
 		}
 		return null;
 	}
@@ -480,11 +585,13 @@ public abstract class Header implements java.io.Serializable {
 	
 	/**
 	 * Zwraca reprezentację nagłówka identyczną do tej zwracanej przez
-	 * {@link #toString()}, ale w formie tablicy bajtów.
+	 * {@link #toString()}, ale w formie tablicy bajtów. Znaki zamieniane są na bajty
+	 * zgodnie z ISO-8859-1, tak jak przy odczytywaniu nagłówka, więc bajty spoza ASCII
+	 * trafiają dalej bez zmian.
 	 * @return tablica bajtów gotowa do wysłania przez {@code OutputStream}
 	 */
 	public byte[] getBytes() {
-		return toString().getBytes();
+		return toString().getBytes(StandardCharsets.ISO_8859_1);
 	}
 	
 	/**
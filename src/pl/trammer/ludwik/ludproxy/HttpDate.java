@@ -1,7 +1,6 @@
 package pl.trammer.ludwik.ludproxy;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 /**
@@ -32,54 +31,40 @@ public class HttpDate implements java.io.Serializable{
 
 	private Date date;
 	
-	private static final SimpleDateFormat FORMAT_RFC1123;
-	private static final SimpleDateFormat FORMAT_RFC1036;
-	private static final SimpleDateFormat FORMAT_ASCTIME;
+	private static final String[] DAYS = {"Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"}; // 1 stycznia 1970 to czwartek
+	private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
 	
-	//od kiedy liczyć daty w formacie RFC 1036, które zapisują rok jako dwie cyfry
-	private static final Date TWO_DIGIT_YEAR_START;
-
-	private static final SimpleDateFormat[] DATE_FORMATS;
+	/**
+	 * Ostatnio sformatowana bieżąca data (patrz {@link #formatNow()}).
+	 */
+	private static volatile Formatted now = new Formatted(0, null);
 	
-    static {
-    	(FORMAT_RFC1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US)).setTimeZone(TimeZone.getTimeZone("GMT"));
-    	(FORMAT_RFC1036 = new SimpleDateFormat("EEEE, dd-MMM-yy HH:mm:ss zzz", Locale.US)).setTimeZone(TimeZone.getTimeZone("GMT"));
-    	(FORMAT_ASCTIME = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy", Locale.US)).setTimeZone(TimeZone.getTimeZone("GMT"));
-
-    	DATE_FORMATS = new SimpleDateFormat[] {
-    				FORMAT_RFC1123,
-    				FORMAT_RFC1036,
-    				FORMAT_ASCTIME
-    		    };
-    	
-    	// Dwucyfrowe lata (RFC 1036) są latami w XXI wieku
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeZone(TimeZone.getTimeZone("GMT"));
-        calendar.set(2000, Calendar.JANUARY, 1, 0, 0, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
-        TWO_DIGIT_YEAR_START = calendar.getTime();
-        FORMAT_RFC1036.set2DigitYearStart(TWO_DIGIT_YEAR_START);  
-    }
+	/**
+	 * Sekunda i jej tekstowa reprezentacja. Obiekty są niezmienne, więc mogą być
+	 * bezpiecznie współdzielone przez wątki bez żadnych blokad.
+	 */
+	private static class Formatted {
+		final long second;
+		final String text;
+		
+		Formatted(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
 
     /**
      * Tworzy obiekt daty na podstawie łańcucha znaków w jednym
      * z trzech formatów dat dopuszczanym przez RFC 2616.
+     * <p>
+     * Tekst przetwarzany jest bezpośrednio (bez {@code SimpleDateFormat}), więc
+     * konstruktor może być bezpiecznie wywoływany przez wiele wątków na raz.
+     * 
      * @param s data zapisana jako tekst
      * @throws ParseException
      */
     public HttpDate(String s) throws ParseException {
-    	
-    	/* Próbujemy każdego możliwego formatu po kolei */
-        for (SimpleDateFormat dateFormat : DATE_FORMATS) {
-        
-            try {
-                date = dateFormat.parse(s);
-            } catch (ParseException e) {
-                // ten format nie wyszedł, spróbujmy następnego
-            }
-        }
-        
-        if(date==null) throw new ParseException("Data z nagłówka wcale nie wygląda jak data!", 0);
+    	date = new Date(parse(s));
     }
     
     /**
@@ -103,7 +88,207 @@ public class HttpDate implements java.io.Serializable{
      * czyli formacie wymaganym do komunikacji HTTP 1.1.
      */
     public String toString() {
-    	return FORMAT_RFC1123.format(date);
+    	return format(date.getTime());
+    }
+    
+    /**
+     * Zwraca bieżącą datę w formacie RFC 1123 (gotową do wpisania w pole {@code Date}).
+     * Tekst jest tworzony tylko raz na sekundę i współdzielony przez wszystkie wątki.
+     */
+    public static String formatNow() {
+    	long second = System.currentTimeMillis()/1000;
+    	Formatted f = now;
+    	if(f.second!=second || f.text==null) {
+    		f = new Formatted(second, format(second*1000));
+    		now = f;
+    	}
+    	return f.text;
+    }
+    
+    /**
+     * Zapisuje datę w formacie RFC 1123, np. {@code "Sun, 06 Nov 1994 08:49:37 GMT"}.
+     * 
+     * @param millis liczba milisekund od początku 1 stycznia 1970 (GMT)
+     */
+    public static String format(long millis) {
+    	long seconds = (millis >= 0 ? millis/1000 : (millis - 999)/1000);
+    	long days = (seconds >= 0 ? seconds/86400 : (seconds - 86399)/86400);
+    	int secondOfDay = (int)(seconds - days*86400);
+    	
+    	// zamiana liczby dni na rok, miesiąc i dzień (kalendarz gregoriański)
+    	long z = days + 719468;
+    	long era = (z >= 0 ? z : z - 146096) / 146097;
+    	int doe = (int)(z - era*146097);
+    	int yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+    	int doy = doe - (365*yoe + yoe/4 - yoe/100);
+    	int mp = (5*doy + 2)/153;
+    	int day = doy - (153*mp + 2)/5 + 1;
+    	int month = (mp < 10 ? mp + 3 : mp - 9);
+    	long year = yoe + era*400 + (month <= 2 ? 1 : 0);
+    	
+    	StringBuilder sb = new StringBuilder(29);
+    	sb.append(DAYS[(int)(((days % 7) + 7) % 7)]).append(", ");
+    	twoDigits(sb, day).append(' ').append(MONTHS[month - 1]).append(' ').append(year).append(' ');
+    	twoDigits(sb, secondOfDay/3600).append(':');
+    	twoDigits(sb, secondOfDay/60 % 60).append(':');
+    	twoDigits(sb, secondOfDay % 60).append(" GMT");
+    	return sb.toString();
+    }
+    
+    private static StringBuilder twoDigits(StringBuilder sb, int n) {
+    	return sb.append((char)('0' + n/10)).append((char)('0' + n%10));
+    }
+    
+    /**
+     * Odczytuje datę zapisaną w jednym z formatów dopuszczanych przez RFC 2616:
+     * RFC 1123 ({@code "Sun, 06 Nov 1994 08:49:37 GMT"}), RFC 1036
+     * ({@code "Sunday, 06-Nov-94 08:49:37 GMT"}) lub ANSI C ({@code "Sun Nov  6 08:49:37 1994"}).
+     * Nazwa dnia tygodnia nie jest sprawdzana, a strefą czasową może być {@code GMT},
+     * {@code UTC} lub przesunięcie w postaci {@code +hhmm}. Tekst następujący po dacie jest ignorowany.
+     * 
+     * @return liczba milisekund od początku 1 stycznia 1970 (GMT)
+     * @throws ParseException jeśli tekst nie jest datą w żadnym z tych formatów
+     */
+    public static long parse(String s) throws ParseException {
+    	Parser p = new Parser(s);
+    	int day, month, hour, minute, second;
+    	long year;
+    	
+    	// dzień tygodnia (pełny lub skrócony), w formatach RFC zakończony przecinkiem
+    	p.skipLetters();
+    	p.skip(',');
+    	p.skipSpaces();
+    	
+    	if(p.isLetter()) {
+    		// ANSI C: "Nov  6 08:49:37 1994"
+    		month = p.month();
+    		p.skipSpaces();
+    		day = p.number(1, 2);
+    		p.skipSpaces();
+    		hour = p.number(1, 2); p.expect(':');
+    		minute = p.number(2, 2); p.expect(':');
+    		second = p.number(2, 2);
+    		p.skipSpaces();
+    		year = p.number(4, 4);
+    	} else {
+    		// RFC 1123: "06 Nov 1994", RFC 1036: "06-Nov-94"
+    		day = p.number(1, 2);
+    		boolean dashes = p.skip('-');
+    		if(!dashes) p.skipSpaces();
+    		month = p.month();
+    		if(dashes) p.expect('-'); else p.skipSpaces();
+    		int start = p.pos;
+    		year = p.number(2, 4);
+    		// dwucyfrowe lata (RFC 1036) są latami w XXI wieku
+    		if(p.pos - start == 2) year += 2000;
+    		p.skipSpaces();
+    		hour = p.number(1, 2); p.expect(':');
+    		minute = p.number(2, 2); p.expect(':');
+    		second = p.number(2, 2);
+    	}
+    	
+    	// tekst po dacie (np. druga data, gdy pole powtórzono) jest ignorowany
+    	p.skipSpaces();
+    	int offset = p.zone();
+    	if(day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+    		throw new ParseException("Data z nagłówka wcale nie wygląda jak data!", p.pos);
+    	}
+    	
+    	return ((daysFromCivil(year, month, day)*86400 + hour*3600 + minute*60 + second) - offset)*1000L;
+    }
+    
+    /**
+     * Liczba dni od 1 stycznia 1970 do podanego dnia (kalendarz gregoriański).
+     */
+    private static long daysFromCivil(long year, int month, int day) {
+    	year -= (month <= 2 ? 1 : 0);
+    	long era = (year >= 0 ? year : year - 399) / 400;
+    	int yoe = (int)(year - era*400);
+    	int doy = (153*(month > 2 ? month - 3 : month + 9) + 2)/5 + day - 1;
+    	int doe = yoe*365 + yoe/4 - yoe/100 + doy;
+    	return era*146097 + doe - 719468;
+    }
+    
+    /**
+     * Prosty analizator tekstu daty - kolejne metody odczytują kolejne elementy
+     * lub zgłaszają {@code ParseException}.
+     */
+    private static class Parser {
+    	final String s;
+    	int pos = 0;
+    	
+    	Parser(String s) {
+    		this.s = s.trim();
+    	}
+    	
+    	boolean atEnd() {
+    		return pos >= s.length();
+    	}
+    	
+    	boolean isLetter() {
+    		return !atEnd() && Character.isLetter(s.charAt(pos));
+    	}
+    	
+    	void skipLetters() {
+    		while(isLetter()) pos++;
+    	}
+    	
+    	void skipSpaces() {
+    		while(!atEnd() && s.charAt(pos)==' ') pos++;
+    	}
+    	
+    	boolean skip(char c) {
+    		if(atEnd() || s.charAt(pos)!=c) return false;
+    		pos++;
+    		return true;
+    	}
+    	
+    	void expect(char c) throws ParseException {
+    		if(!skip(c)) throw new ParseException("Oczekiwano znaku '" + c + "'", pos);
+    	}
+    	
+    	int number(int minDigits, int maxDigits) throws ParseException {
+    		int start = pos, n = 0;
+    		while(!atEnd() && pos - start < maxDigits && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') {
+    			n = n*10 + (s.charAt(pos++) - '0');
+    		}
+    		if(pos - start < minDigits) throw new ParseException("Oczekiwano liczby", pos);
+    		return n;
+    	}
+    	
+    	int month() throws ParseException {
+    		if(pos + 3 <= s.length()) {
+    			String name = s.substring(pos, pos + 3);
+    			for(int i=0; i<MONTHS.length; i++) {
+    				if(MONTHS[i].equalsIgnoreCase(name)) {
+    					pos += 3;
+    					return i + 1;
+    				}
+    			}
+    		}
+    		throw new ParseException("Nieznany miesiąc", pos);
+    	}
+    	
+    	/**
+    	 * @return przesunięcie strefy czasowej względem GMT w sekundach
+    	 */
+    	int zone() throws ParseException {
+    		if(atEnd()) return 0;
+    		char c = s.charAt(pos);
+    		if(c=='+' || c=='-') {
+    			pos++;
+    			int hhmm = number(4, 4);
+    			int offset = (hhmm/100)*3600 + (hhmm%100)*60;
+    			return c=='-' ? -offset : offset;
+    		}
+    		int start = pos;
+    		skipLetters();
+    		if(pos==start) return 0; // brak strefy (format ANSI C) - GMT
+    		String zone = s.substring(start, pos);
+    		if(zone.equalsIgnoreCase("GMT") || zone.equalsIgnoreCase("UTC")
+    				|| zone.equalsIgnoreCase("UT") || zone.equalsIgnoreCase("Z")) return 0;
+    		throw new ParseException("Nieznana strefa czasowa: " + zone, start);
+    	}
     }
  
     /**
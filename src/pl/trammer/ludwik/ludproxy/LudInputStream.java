@@ -1,5 +1,4 @@
 package pl.trammer.ludwik.ludproxy;
-import java.io.ByteArrayOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,10 +9,34 @@ import pl.trammer.ludwik.ludproxy.errors.*;
 /**
  * Klasa dziedzicząca klasę {@code InputStream} i {@code FilterInputStream}
  * posiadająca dodatkowe metody przydatne przy odczytywaniu wiadomości HTTP.
+ * <p>
+ * Strumień posiada własny bufor, więc dane ze strumienia źródłowego (zwykle gniazda
+ * sieciowego) odczytywane są większymi porcjami, a nie bajt po bajcie. Z tego powodu
+ * po utworzeniu obiektu klasy nie należy już czytać bezpośrednio ze strumienia źródłowego.
  * 
  * @author Ludwik Trammer
  */
 public class LudInputStream extends FilterInputStream {
+	private static final byte[] NO_BUFFER = new byte[0];
+	
+	/**
+	 * Maksymalna wielkość bufora tworzonego z góry dla treści o znanej długości
+	 * (żeby serwer nie mógł nas zmusić do zajęcia ogromnej ilości pamięci samym nagłówkiem).
+	 */
+	private static final int MAX_PRESIZED = 16*1024*1024;
+	
+	/**
+	 * Bufor strumienia, pochodzący z {@link BufferPool} (do której wraca przy zamknięciu strumienia).
+	 */
+	private byte[] buf;
+	private int pos = 0;
+	private int count = 0;
+	
+	/**
+	 * Bufor, w którym składana jest linia tekstu, jeśli nie zmieściła się
+	 * w całości w {@link #buf}.
+	 */
+	private byte[] line = null;
 		
 	/**
 	 * Tworzy nowy obiekt klasy na podstawie obiektu klasy {@code InputStream}.
@@ -21,11 +44,113 @@ public class LudInputStream extends FilterInputStream {
 	 */
 	public LudInputStream(InputStream i) {
 		super(i);
+		buf = BufferPool.acquire();
+	}
+	
+	/**
+	 * Tworzy nowy obiekt klasy na podstawie obiektu klasy {@code InputStream}, przy czym
+	 * zanim zostaną odczytane dane ze strumienia, odczytane zostaną podane bajty
+	 * (np. odczytane już wcześniej z tego samego połączenia).
+	 * @param i obiekt klasy {@code InputStream}
+	 * @param initial dane, które mają zostać odczytane w pierwszej kolejności
+	 */
+	public LudInputStream(InputStream i, byte[] initial) {
+		super(i);
+		buf = (initial.length <= BufferPool.getBufferSize() ? BufferPool.acquire() : new byte[initial.length]);
+		System.arraycopy(initial, 0, buf, 0, initial.length);
+		count = initial.length;
+	}
+	
+	/**
+	 * Uzupełnia pusty bufor danymi ze strumienia źródłowego.
+	 * 
+	 * @return liczba odczytanych bajtów lub {@code -1} jeśli strumień się skończył
+	 */
+	private int fill() throws IOException {
+		int n = in.read(buf, 0, buf.length);
+		pos = 0;
+		count = (n > 0 ? n : 0);
+		return n;
+	}
+	
+	public int read() throws IOException {
+		if(pos >= count && fill() <= 0) return -1;
+		return buf[pos++] & 0xff;
+	}
+	
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len==0) return 0;
+		
+		if(pos >= count) {
+			// duże porcje nie mają po co przechodzić przez bufor
+			if(len >= buf.length) return in.read(b, off, len);
+			if(fill() <= 0) return -1;
+		}
+		
+		int n = Math.min(len, count - pos);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+	
+	public long skip(long n) throws IOException {
+		if(n <= 0) return 0;
+		if(pos < count) {
+			int skipped = (int) Math.min(n, count - pos);
+			pos += skipped;
+			return skipped;
+		}
+		return in.skip(n);
+	}
+	
+	public int available() throws IOException {
+		return (count - pos) + in.available();
+	}
+	
+	public boolean markSupported() {
+		return false;
+	}
+	
+	public synchronized void mark(int readlimit) {}
+	
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+	
+	/**
+	 * Oddaje bufor strumienia do {@link BufferPool}, nie zamykając strumienia źródłowego.
+	 * Można to zrobić tylko jeśli w buforze nie ma już żadnych danych (np. gdy połączenie
+	 * czeka na kolejne zapytanie w {@link SelectorLoop}). Strumień nie może być potem
+	 * używany.
+	 */
+	public void releaseBuffer() {
+		if(buf==NO_BUFFER) return;
+		if(pos < count) throw new IllegalStateException("W buforze są jeszcze dane");
+		
+		BufferPool.release(buf);
+		buf = NO_BUFFER;
+		pos = count = 0;
+	}
+	
+	/**
+	 * Zamyka strumień (i strumień źródłowy) i oddaje jego bufor do {@link BufferPool}.
+	 */
+	public void close() throws IOException {
+		if(buf!=NO_BUFFER) {
+			BufferPool.release(buf);
+			buf = NO_BUFFER;
+			pos = count = 0;
+		}
+		super.close();
 	}
 		
 	/**
 	 * Odczytuje zadaną ilość bajtów z strumienia wejściowego, jednocześnie na bierząco 
 	 * przekazując odczytywane dane do strumienia wyjściowego.
+	 * <p>
+	 * Za każdym razem, gdy chwilowo nie ma więcej danych do odczytania, strumień
+	 * wyjściowy jest opróżniany ({@code flush()}), więc dane buforowane po drodze
+	 * nie czekają niepotrzebnie.
 	 * 
 	 * @param len ilość bajtów do odczytania ze strumienia wejściowego.
 	 * Jeśli {@code -1} będzie czytać aż do zamknięcia strumienia.
@@ -35,49 +160,39 @@ public class LudInputStream extends FilterInputStream {
 	 * @return tablica bajtów zawierająca wszystkie odczytane dane.
 	 */
 	public byte[] forwardAndRead(int len, OutputStream output)  throws IOException, HttpError {
-		return forwardAndRead(len, output, false);
+		// jeśli znamy długość, bufor ma dokładnie taką wielkość i nie trzeba go potem kopiować
+		ByteStore store = new ByteStore(len!=-1 ? Math.min(len, MAX_PRESIZED) : BufferPool.getBufferSize());
+		forwardInto(len, output, store);
+		return store.getBytes();
 	}
 	
 	/**
-	 * Metoda działa analogicznie do {@link #forwardAndRead(int, OutputStream)}, ale dodatkowo
-	 * jeśli ostatni parametr ustawiony jest na {@code true} każdą porcję danych odczytanych
-	 * ze strumienia wejściowego przekazywaną na strumień wyjściowy poprzedza nagłówkiem 
-	 * zawierającym liczbę bajtów przekazywanych w danej porcji. Jest to format 
-	 * zgodny z Transfer Encoding {@code chunked} z {@code HTTP 1.1}.
-	 * <p>
-	 * Dane w zwracanej tablicy zawierają jedynie informacje odczytane bezpośrednio
-	 * ze strumienia wejściowego i nie zawierają żadnych dodatkowych nagłówków.
+	 * Działa jak {@link #forwardAndRead(int, OutputStream)}, ale odczytane dane dopisuje
+	 * do podanego bufora (dane odczytywane są bezpośrednio do niego, bez pośrednich kopii).
 	 * 
 	 * @param len ilość bajtów do odczytania ze strumienia wejściowego.
 	 * Jeśli {@code -1} będzie czytać aż do zamknięcia strumienia.
-	 * @param output strumień wyjściowy na który mają na bierząco (w czasie odczytywania)
-	 * być przekazywane dane, lub {@code null} jeśli dane nie mają być przekazywane na
-	 * bierząco.
-	 * @param writeChunkHeaders czy porcje danych przekazywane na strumień wyjściowy
-	 * mają być poprzedzane nagłówkami informującymi o ich wielkości.
-	 * @return tablica bajtów zawierająca wszystkie odczytane dane.
+	 * @param output strumień wyjściowy lub {@code null}
+	 * @param store bufor, do którego trafiają odczytane dane, lub {@code null} jeśli dane
+	 * mają być tylko przekazane (patrz {@link #forward(long, OutputStream)})
+	 * @return liczba odczytanych bajtów
 	 */
-	public byte[] forwardAndRead(int len, OutputStream output, boolean writeChunkHeaders) throws IOException, HttpError {
-		byte[] buffer = new byte[1000];
-		ByteArrayOutputStream store = new ByteArrayOutputStream();
-		int lenRemaining = len;
+	long forwardInto(long len, OutputStream output, ByteStore store) throws IOException, HttpError {
+		if(store==null) return forward(len, output);
 		
-		int limit = (len==-1 || buffer.length < lenRemaining ? buffer.length : lenRemaining);
+		int step = BufferPool.getBufferSize();
+		long lenRemaining = len;
+		int bytesRead = 0;
+		long total = 0;
 		
-		for(int bytesRead=0; limit > 0 && (bytesRead = in.read(buffer, 0, limit)) != -1; )
-		{			
+		while((len==-1 || lenRemaining > 0) && (bytesRead = store.readFrom(this, (int) (len==-1 ? step : Math.min(step, lenRemaining)))) != -1) {
 			if(bytesRead>0) {
-				store.write(buffer, 0, bytesRead);
+				total += bytesRead;
 				
 				try {
-					if(writeChunkHeaders) {
-						if(output!=null) output.write((Integer.toHexString(bytesRead) + "\r\n").getBytes());
-					}
-		
-					if(output!=null) output.write(buffer, 0, bytesRead);
-					
-					if(writeChunkHeaders) {
-						if(output!=null) output.write(("\r\n").getBytes());
+					if(output!=null) {
+						output.write(store.array(), store.size() - bytesRead, bytesRead);
+						if(pos >= count && in.available()==0) output.flush();
 					}
 				} catch(IOException e) {
 					throw new OutputStreamClosed();
@@ -85,18 +200,96 @@ public class LudInputStream extends FilterInputStream {
 				
 				// zmniejszamy długość do przeczytania o to co przeczytaliśmy
 				if( len!=-1) lenRemaining -= bytesRead;
-				
-				limit = (len==-1 || buffer.length < lenRemaining ? buffer.length : lenRemaining);
 			}
 		}
-					
-		byte[] ba = store.toByteArray();
 		
 		// spodziewaliśmy się konkretnych danych, a połączenie
 		// na starcie było zamknięte. Wyjątek!
-		if (ba.length==0 && len>0) throw new InputStreamClosed();
+		if (total==0 && len>0) throw new InputStreamClosed();
+		return total;
+	}
+	
+	/**
+	 * Przekazuje dane ze strumienia wejściowego na strumień wyjściowy prosto z bufora
+	 * strumienia, niczego nie zapamiętując. Niezależnie od ilości przekazanych danych
+	 * zajmuje więc tylko tyle pamięci, ile sam bufor.
+	 * 
+	 * @param len ilość bajtów do przekazania.
+	 * Jeśli {@code -1} będzie czytać aż do zamknięcia strumienia.
+	 * @param output strumień wyjściowy lub {@code null} jeśli dane mają zostać pominięte
+	 * @return liczba przekazanych bajtów
+	 */
+	public long forward(long len, OutputStream output) throws IOException, HttpError {
+		long lenRemaining = len;
+		long total = 0;
+		
+		while((len==-1 || lenRemaining > 0) && (pos < count || fill() > 0)) {
+			int n = (int) (len==-1 ? count - pos : Math.min(count - pos, lenRemaining));
+			
+			try {
+				if(output!=null) output.write(buf, pos, n);
+				pos += n;
+				if(output!=null && pos >= count && in.available()==0) output.flush();
+			} catch(IOException e) {
+				throw new OutputStreamClosed();
+			}
+			
+			total += n;
+			if(len!=-1) lenRemaining -= n;
+		}
 		
-		return ba;
+		// spodziewaliśmy się konkretnych danych, a połączenie
+		// na starcie było zamknięte. Wyjątek!
+		if (total==0 && len>0) throw new InputStreamClosed();
+		return total;
+	}
+	
+	/**
+	 * Pomija znaki CR i LF znajdujące się na początku bufora (np. kończące fragment
+	 * wiadomości {@code chunked}). Nigdy nie czeka na nowe dane.
+	 */
+	public void skipLineBreaks() {
+		while(pos < count && (buf[pos]=='\r' || buf[pos]=='\n')) pos++;
+	}
+	
+	/**
+	 * Odczytuje nagłówek fragmentu wiadomości zakodowanej jako Transfer Encoding
+	 * {@code chunked} i zwraca długość fragmentu. Puste linie przed nagłówkiem
+	 * (w tym CR+LF kończące poprzedni fragment) są pomijane, podobnie jak
+	 * rozszerzenia fragmentu (po średniku). Długość odczytywana jest prosto
+	 * z bajtów w buforze, bez tworzenia obiektów {@code String}.
+	 * 
+	 * @return długość fragmentu w bajtach ({@code 0} oznacza ostatni fragment)
+	 * @throws NumberFormatException jeśli nagłówek nie zaczyna się od liczby szesnastkowej
+	 * lub liczba jest zbyt duża
+	 */
+	public int readChunkSize() throws IOException, InputStreamClosed {
+		int ch;
+		while((ch = read())=='\r' || ch=='\n') {}
+		
+		int size = 0;
+		int digits = 0;
+		while(true) {
+			int digit;
+			if(ch>='0' && ch<='9') digit = ch - '0';
+			else if(ch>='a' && ch<='f') digit = ch - 'a' + 10;
+			else if(ch>='A' && ch<='F') digit = ch - 'A' + 10;
+			else break;
+			
+			if(size > (Integer.MAX_VALUE >> 4)) throw new NumberFormatException("Chunk size too large");
+			size = (size << 4) + digit;
+			digits++;
+			ch = read();
+		}
+		
+		if(ch==-1) throw new InputStreamClosed();
+		if(digits==0) throw new NumberFormatException("Invalid chunk size");
+		
+		// reszta linii (rozszerzenia fragmentu) nas nie interesuje
+		while(ch!='\n') {
+			if((ch = read())==-1) throw new InputStreamClosed();
+		}
+		return size;
 	}
 
 	/**
@@ -112,35 +305,73 @@ public class LudInputStream extends FilterInputStream {
 	 * Jako że RFC 2616 mówi, że jedynym zakończeniem wiersza dopuszczalnym
 	 * w nagłówku HTTP jest para CR+LF ta metoda również nie rozpoznaje innych
 	 * symboli końca wiersza.
+	 * <p>
+	 * Linia wyszukiwana jest bezpośrednio w buforze strumienia, a bajty zamieniane
+	 * na znaki zgodnie z ISO-8859-1.
 	 * 
 	 * @return linia tekstu
 	 */
 	public String readLine() throws IOException, InputStreamClosed {
-		ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
-		int ch;
+		int lineLen = 0;
 		boolean accessedStream = false;
 		
-		while((ch = in.read()) != -1) {
+		while(pos < count || fill() > 0) {
 			accessedStream = true;
-
-			if(ch == '\r') {
+			int start = pos;
+			
+			for(int i=start; i<count; i++) {
+				if(buf[i] != '\n') continue;
+				
 				/* 
 				 * Nowa linia to tylko "\r\n". Tak mówi RFC.
 				 * Samotne \r lub \n się nie liczy!
+				 * (\r mogło zostać już przepisane do bufora linii)
 				 */
-				if((ch = in.read()) == '\n') { 
-					break;
-				} else {
-					lineBytes.write('\r');
-				}
+				boolean crlf = (i > start ? buf[i-1]=='\r' : lineLen > 0 && line[lineLen-1]=='\r');
+				if(!crlf) continue;
+				
+				pos = i + 1;
+				if(lineLen==0) return toLatin1String(buf, start, i-1-start);
+				
+				lineLen = appendToLine(lineLen, start, i-start);
+				return toLatin1String(line, 0, lineLen-1);
 			}
 			
-			if(ch != -1) lineBytes.write(ch);
+			// linia ciągnie się dalej - przepisujemy co mamy i uzupełniamy bufor
+			lineLen = appendToLine(lineLen, start, count-start);
+			pos = count;
 		}
 		
 		if (!accessedStream) throw new InputStreamClosed();
 		
-		return lineBytes.toString();
+		return toLatin1String(line, 0, lineLen);
+	}
+	
+	/**
+	 * Dopisuje fragment {@link #buf} do bufora linii (w razie potrzeby go powiększając).
+	 * 
+	 * @return nowa długość linii
+	 */
+	private int appendToLine(int lineLen, int off, int len) {
+		if(line==null) line = new byte[Math.max(256, len)];
+		if(lineLen + len > line.length) {
+			byte[] bigger = new byte[Math.max(line.length*2, lineLen + len)];
+			System.arraycopy(line, 0, bigger, 0, lineLen);
+			line = bigger;
+		}
+		System.arraycopy(buf, off, line, lineLen, len);
+		return lineLen + len;
+	}
+	
+	/**
+	 * Zamienia bajty na tekst, traktując każdy bajt jako jeden znak (ISO-8859-1,
+	 * jak w nagłówkach HTTP). W odróżnieniu od dekodowania przez {@code Charset}
+	 * nie wymaga żadnych dodatkowych obiektów poza samym tekstem.
+	 */
+	private static String toLatin1String(byte[] b, int off, int len) {
+		char[] chars = new char[len];
+		for(int i=0; i<len; i++) chars[i] = (char)(b[off+i] & 0xff);
+		return new String(chars);
 	}
 	
 	/**
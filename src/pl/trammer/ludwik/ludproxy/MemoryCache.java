@@ -0,0 +1,155 @@
+package pl.trammer.ludwik.ludproxy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pierwszy, przechowywany w pamięci, poziom cache - najczęściej ostatnio używane
+ * odpowiedzi z {@link Cache}, dzięki czemu kolejne trafienia nie muszą ich
+ * odczytywać (i deserializować) z bazy JDBM.
+ * <p>
+ * Łączna wielkość przechowywanych odpowiedzi (liczona w przybliżeniu - treść
+ * trzymana w pamięci plus nagłówek) nie przekracza ustawionego limitu. Gdy brakuje
+ * miejsca, usuwane są odpowiedzi, których najdawniej używano. Odpowiedzi większe
+ * niż ustawiony limit pojedynczego obiektu w ogóle tu nie trafiają (odpowiedzi z
+ * treścią w pliku zajmują w pamięci niewiele, więc zwykle się mieszczą).
+ * <p>
+ * Przechowywane obiekty są współdzielone przez wszystkie wątki, więc nie wolno
+ * ich modyfikować - {@link Cache#get(RequestHeader)} zwraca ich kopie.
+ * <p>
+ * Wszystkie metody klasy są statyczne.
+ *
+ * @author Ludwik Trammer
+ */
+public class MemoryCache {
+	/**
+	 * Przybliżony narzut pamięci na każdą odpowiedź (obiekty, nagłówek zapytania itd.).
+	 */
+	private static final int OVERHEAD = 512;
+
+	private static long maxSize = 64*1024*1024;
+	private static long maxObjectSize = 1024*1024;
+
+	/**
+	 * Odpowiedzi w kolejności od najdawniej używanej - dostęp tylko pod blokadą na {@code entries}.
+	 */
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+	private static long size = 0;
+
+	private static final AtomicInteger hits = new AtomicInteger();
+	private static final AtomicInteger misses = new AtomicInteger();
+	private static final AtomicInteger evictions = new AtomicInteger();
+
+	private static class Entry {
+		final ServerResponse response;
+		final long size;
+
+		Entry(ServerResponse response, long size) {
+			this.response = response;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Ustawia limity pamięci. Zmiana dotyczy wszystkich wątków, a przechowywane
+	 * odpowiedzi są usuwane.
+	 *
+	 * @param maxSize łączna wielkość przechowywanych odpowiedzi w bajtach ({@code 0} wyłącza ten poziom cache)
+	 * @param maxObjectSize wielkość, powyżej której odpowiedź nie jest przechowywana
+	 */
+	public static void configure(long maxSize, long maxObjectSize) {
+		synchronized(entries) {
+			MemoryCache.maxSize = maxSize;
+			MemoryCache.maxObjectSize = maxObjectSize;
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * @param url adres (w postaci zwracanej przez {@link RequestHeader#getUrl()})
+	 * @return przechowywana odpowiedź lub {@code null}
+	 */
+	static ServerResponse get(String url) {
+		Entry entry;
+		synchronized(entries) {
+			entry = entries.get(url);
+		}
+
+		if(entry==null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.response;
+	}
+
+	/**
+	 * Zapamiętuje odpowiedź (zastępując poprzednią odpowiedź pod tym adresem), jeśli się mieści.
+	 */
+	static void put(String url, ServerResponse response) {
+		long objectSize = sizeOf(response);
+
+		synchronized(entries) {
+			Entry old = (objectSize <= maxObjectSize && objectSize <= maxSize)
+					? entries.put(url, new Entry(response, objectSize))
+					: entries.remove(url);
+
+			if(old!=null) size -= old.size;
+			if(objectSize > maxObjectSize || objectSize > maxSize) return;
+			size += objectSize;
+
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while(size > maxSize && it.hasNext()) {
+				Entry eldest = it.next().getValue();
+				it.remove();
+				size -= eldest.size;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Usuwa odpowiedź zapisaną pod podanym adresem.
+	 */
+	static void remove(String url) {
+		synchronized(entries) {
+			Entry old = entries.remove(url);
+			if(old!=null) size -= old.size;
+		}
+	}
+
+	/**
+	 * Usuwa wszystkie przechowywane odpowiedzi.
+	 */
+	static void clear() {
+		synchronized(entries) {
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	private static long sizeOf(ServerResponse response) {
+		MessageBody body = response.getBody();
+		long bodySize = (body.getFile()==null ? body.length() : 0);
+		return bodySize + response.getHeader().getBytes().length + OVERHEAD;
+	}
+
+	/**
+	 * Zwraca krótki opis stanu (do wypisywania w komunikatach).
+	 */
+	public static String getStats() {
+		int count;
+		long used;
+		synchronized(entries) {
+			count = entries.size();
+			used = size;
+		}
+		return "cache w pamięci - trafienia: " + hits.get()
+				+ ", chybienia: " + misses.get()
+				+ ", obiekty: " + count
+				+ ", zajęte: " + used/1024 + " KiB"
+				+ ", usunięte: " + evictions.get();
+	}
+}
@@ -1,5 +1,7 @@
 package pl.trammer.ludwik.ludproxy;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import pl.trammer.ludwik.ludproxy.errors.*;
 
@@ -13,6 +15,38 @@ public class MessageBody implements java.io.Serializable {
 	private static final long serialVersionUID = 8059937303887036643L;
 	private final byte[] body;
 	
+	/**
+	 * Czy treść została tylko przekazana dalej, bez zapamiętywania (wtedy {@link #body} jest pusta).
+	 */
+	private boolean discarded = false;
+	private long discardedLength = 0;
+	
+	/**
+	 * Ścieżka pliku z treścią, jeśli była zbyt duża żeby trzymać ją w pamięci (wtedy {@link #body} jest pusta).
+	 */
+	private String file = null;
+	private long fileLength = 0;
+	
+	/**
+	 * Numer rekordu bazy cache, w którym zapisana jest treść ({@code 0} - treść jest w tym
+	 * obiekcie lub w pliku). Treść odczytywana jest z bazy dopiero gdy jest potrzebna,
+	 * dzięki czemu sam obiekt odpowiedzi (nagłówki) jest mały.
+	 */
+	private long record = 0;
+	private int recordLength = 0;
+	private transient byte[] loaded = null;
+	
+	/**
+	 * Treści dłuższe niż tyle bajtów zapisywane są w plikach ({@code 0} - nigdy).
+	 */
+	private static long spillThreshold = 1024*1024;
+	private static final File spillDirectory = new File(System.getProperty("java.io.tmpdir"), "LudProxy-bodies");
+	
+	/**
+	 * Największa treść, jaką da się trzymać w pamięci (w jednej tablicy bajtów).
+	 */
+	private static final long MAX_IN_MEMORY = Integer.MAX_VALUE - 8;
+	
 	/**
 	 * Tworzy nowy obiekt "ciała" wiadomości HTTP, której treścią jest przekazana
 	 * tablica bajtów.
@@ -22,6 +56,20 @@ public class MessageBody implements java.io.Serializable {
 		body = bytes;
 	}
 	
+	/**
+	 * Tworzy obiekt, którego treść zapisana jest w osobnym rekordzie bazy cache
+	 * (patrz {@link Cache}).
+	 * 
+	 * @param record numer rekordu z treścią
+	 * @param bytes treść (zapamiętywana w obiekcie, ale nie serializowana razem z nim)
+	 */
+	MessageBody(long record, byte[] bytes) {
+		body = new byte[0];
+		this.record = record;
+		recordLength = bytes.length;
+		loaded = bytes;
+	}
+	
 	/**
 	 * Odczytuje treść "ciała" wiadomości HTTP ze strumienia wejściowego, jednocześnie na bierząco
 	 * przekazując ją na strumień wyjściowy.
@@ -55,6 +103,25 @@ public class MessageBody implements java.io.Serializable {
 	 * wiadomość, lub {@code null} jeśli nie dotyczy. 
 	 */
 	public MessageBody(LudInputStream in, Header header, OutputStream out, RequestHeader request) throws HttpError, IOException {
+		this(in, header, out, request, true);
+	}
+	
+	/**
+	 * Konstruktor działa tak samo jak {@link #MessageBody(LudInputStream, Header, OutputStream, RequestHeader)},
+	 * ale pozwala zrezygnować z zapamiętywania treści wiadomości (np. gdy wiadomo, że odpowiedź
+	 * i tak nie trafi do cache). Treść jest wtedy tylko przekazywana na strumień wyjściowy,
+	 * przez bufor strumienia wejściowego, więc niezależnie od jej wielkości zajmuje stałą
+	 * ilość pamięci. {@link #getBytes()} zwraca wtedy pustą tablicę, a {@link #length()}
+	 * długość przekazanej treści.
+	 * 
+	 * @param in strumień wejściowy z którego będą odczytywane dane
+	 * @param header nagłówek wiadomości, której "ciało" chcemy odczytać ze strumienia
+	 * @param out strumień wyjściowy na który na bierząco będą przekazywane odczytywane dane
+	 * @param request nagłówek wiadomości na którą odpowiedzią jest właśnie odczytywana
+	 * wiadomość, lub {@code null} jeśli nie dotyczy. 
+	 * @param keep {@code true} jeśli treść ma zostać zapamiętana w obiekcie
+	 */
+	public MessageBody(LudInputStream in, Header header, OutputStream out, RequestHeader request, boolean keep) throws HttpError, IOException {
 		boolean noBody = false;
 		
 		if(header instanceof ResponseHeader) {
@@ -75,53 +142,67 @@ public class MessageBody implements java.io.Serializable {
 			header.setField("Content-Length", 0+"");
 		} else if(header.containsField("Transfer-Encoding") && !header.fieldContainsValue("Transfer-Encoding", "identity")) {
 			// treść "pokawałkowana" (chunked)
-			ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+			ByteStore tmp = (keep ? new ByteStore(BufferPool.getBufferSize(), spillThreshold) : null);
+			long length = 0;
+			boolean complete = false;
+			
+			// klientowi przekazujemy treść w większych fragmentach, niezależnie od tego jak podzielił ją serwer
+			ChunkedOutputStream chunkedOut = (out!=null ? new ChunkedOutputStream(out) : null);
 			
 			int chunkLen;
-			byte[] bytes;
-			String chunkHeader="";
 			try {
-				do {
-					// Odczytujemy nagłówek fragmentu, mówiący ile danych
-					// mamy do odczytania w danym fragmencie
-					while((chunkHeader = in.readLine()) != null && chunkHeader.equals("")) {};
-
-					if(chunkHeader==null) break; //połączenie zakończone
-					
-					/*
-					 * W nagłówku fragmentu, po liczbie bajtów do odczytania mogą być oddzielone
-					 * średnikiem rozszerzenia. Nas interesuje wyłącznie liczba.
-					 */
-					chunkLen = Integer.parseInt(chunkHeader.split("\\s*;")[0], 16);
-					
+				// Odczytujemy nagłówek fragmentu, mówiący ile danych
+				// mamy do odczytania w danym fragmencie
+				while((chunkLen = in.readChunkSize()) > 0) {
 					// odczytujemy dokładnie tyle bajtów ile nam pozwolił nagłówek fragmentu
-					bytes = in.forwardAndRead(chunkLen, out, true);
-					if(bytes==null) break; //połączenie zakończone
-					tmp.write(bytes);	
-				} while(chunkLen > 0);
+					length += in.forwardInto(chunkLen, chunkedOut, tmp);
+					
+					// jeśli serwer nie przysłał jeszcze kolejnego fragmentu, klient nie musi na niego czekać
+					in.skipLineBreaks();
+					if(chunkedOut!=null && in.available()==0) chunkedOut.flush();
+				}
 				
 				// wyślij nagłówek końca wiadomości typu chunked:
-				if(out!=null) out.write((0 + "\r\n\r\n").getBytes());
+				if(chunkedOut!=null) chunkedOut.finish();
 				
-				// Po treści mogą być dodatkowe nagłówki ("trailing headers"):
-				if(header.containsField("Trailer")) header.getFieldsFromStream(in);
+				// Po treści mogą być dodatkowe nagłówki ("trailing headers"), zakończone pustą linią:
+				if(header.containsField("Trailer")) {
+					header.getFieldsFromStream(in);
+				} else {
+					while(!in.readLine().equals("")) {}
+				}
 				
-				body = tmp.toByteArray();
+				body = (keep ? keep(tmp) : discard(length));
+				complete = true;
 				
 				// dostosuj nagłówek do tego w jakiej postaci właśnie zapisaliśmy ciało:
 				header.removeField("Trailer");
 				header.removeField("Transfer-Encoding");
-				header.setField("Content-Length", body.length+"");
+				header.setField("Content-Length", length+"");
 
 			} catch(NumberFormatException e) {
 				throw new HttpBadGateway("Długość danych określona w nagłówkach chunked nie jest poprawną liczbą (?!)");
+			} finally {
+				// nie udało się odczytać całej treści - nie zostawiajmy po sobie niepotrzebnego pliku
+				if(!complete && tmp!=null) tmp.abort();
+				// ani zajętego bufora
+				if(!complete && chunkedOut!=null) chunkedOut.abort();
 			}
 			
 			
 		} else if(header.containsField("Content-Length")) {
 			// Pobieramy z strumienia dokładnie tyle ile określono w Content-Length
 			try {
-				body = in.forwardAndRead(Integer.parseInt(header.getField("Content-Length")), out);
+				long length = Long.parseLong(header.getField("Content-Length"));
+				
+				if(!keep) {
+					body = discard(in.forward(length, out));
+				} else if((spillThreshold > 0 && length > spillThreshold) || length > MAX_IN_MEMORY) {
+					// duża treść od razu trafia do pliku (zbyt dużej nie zmieścimy w pamięci, nawet jeśli nie zapisujemy do plików)
+					body = readAndKeep(in, length, out, true);
+				} else {
+					body = in.forwardAndRead((int) length, out);
+				}
 			} catch(NumberFormatException e) {
 				throw new HttpBadGateway("Długość danych określona w nagłówku nie jest poprawną liczbą (?!)");
 			}			
@@ -132,15 +213,21 @@ public class MessageBody implements java.io.Serializable {
 			// więc o końcu wiadomości można zorientować się po tym, że serwer zamknął połączenie
 			
 			// Jeśli używamy trwałego połączenia z klietem to trzeba będzie mu to przekazać jako chunked
-			boolean usingChunked =  (request!=null && request.keepAlive());
+			ChunkedOutputStream chunkedOut = (request!=null && request.keepAlive() && out!=null ? new ChunkedOutputStream(out) : null);
+			OutputStream target = (chunkedOut!=null ? chunkedOut : out);
 			
-			body = in.forwardAndRead(-1, out, usingChunked);	
-			
-			// wyślij nagłówek końca wiadomości typu chunked:
-			if(usingChunked && out!=null) out.write((0 + "\r\n\r\n").getBytes());
+			try {
+				body = (keep ? readAndKeep(in, -1, target, false) : discard(in.forward(-1, target)));	
+				
+				// wyślij nagłówek końca wiadomości typu chunked:
+				if(chunkedOut!=null) chunkedOut.finish();
+			} finally {
+				// jeśli przekazywanie się nie powiodło, bufor musi wrócić do puli
+				if(chunkedOut!=null) chunkedOut.abort();
+			}
 			
 			// teraz już znamy długość, więc zapiszmy ją w nagłówku!
-			header.setField("Content-Length", body.length+"");
+			header.setField("Content-Length", totalLength()+"");
 		} else if(header instanceof RequestHeader){
 			// zapytanie bez ciała, ok
 			body = new byte[]{}; 
@@ -150,12 +237,207 @@ public class MessageBody implements java.io.Serializable {
 		}
 	}
 	
+	/**
+	 * Ustawia próg, powyżej którego treść odpowiedzi zapisywana jest w pliku zamiast w pamięci.
+	 * Zmiana dotyczy wszystkich wątków.
+	 * 
+	 * @param bytes próg w bajtach ({@code 0} - treść zawsze trzymana jest w pamięci)
+	 */
+	public static void setSpillThreshold(long bytes) {
+		spillThreshold = bytes;
+	}
+	
+	/**
+	 * Zwraca katalog, w którym zapisywane są pliki z dużymi treściami.
+	 */
+	public static File getSpillDirectory() {
+		return spillDirectory;
+	}
+	
+	/**
+	 * Tworzy nowy, pusty plik na treść wiadomości w katalogu {@link #getSpillDirectory()}.
+	 */
+	static File newSpillFile() throws IOException {
+		spillDirectory.mkdirs();
+		return File.createTempFile("body", ".bin", spillDirectory);
+	}
+	
+	/**
+	 * Odczytuje treść do {@link ByteStore}, która po przekroczeniu progu (lub od razu,
+	 * jeśli {@code spillNow}) przenosi ją do pliku.
+	 */
+	private byte[] readAndKeep(LudInputStream in, long len, OutputStream out, boolean spillNow) throws IOException, HttpError {
+		ByteStore store = new ByteStore(BufferPool.getBufferSize(), spillThreshold);
+		boolean complete = false;
+		
+		try {
+			if(spillNow) store.spill();
+			in.forwardInto(len, out, store);
+			byte[] bytes = keep(store);
+			complete = true;
+			return bytes;
+		} finally {
+			if(!complete) store.abort();
+		}
+	}
+	
+	/**
+	 * Zapamiętuje treść zgromadzoną w {@link ByteStore} (w pamięci lub jako odwołanie do pliku).
+	 * 
+	 * @return tablica, która staje się treścią obiektu (pusta, jeśli treść jest w pliku)
+	 */
+	private byte[] keep(ByteStore store) throws IOException {
+		store.finish();
+		if(store.getFile()==null) return store.getBytes();
+		
+		file = store.getFile().getPath();
+		fileLength = store.length();
+		return new byte[]{};
+	}
+	
+	/**
+	 * Zapamiętuje, że treść o podanej długości została przekazana bez zapamiętywania.
+	 * 
+	 * @return pusta tablica, która staje się treścią obiektu
+	 */
+	private byte[] discard(long length) {
+		discarded = true;
+		discardedLength = length;
+		return new byte[]{};
+	}
+	
 	/**
 	 * Zwraca "ciało" wiadomości jako tablicę bajtów.
-	 * @return tablica bajtów
+	 * <p>
+	 * Jeśli treść jest zapisana w pliku, jest z niego w całości odczytywana, więc
+	 * do przekazywania jej dalej lepiej używać {@link #writeTo(OutputStream)}.
+	 * 
+	 * @return tablica bajtów (pusta, jeśli treść nie została {@linkplain #isStored() zapamiętana})
+	 */
+	public byte[] getBytes() throws IOException {
+		if(record!=0) {
+			byte[] bytes = loaded;
+			if(bytes==null) {
+				bytes = Cache.loadBody(record);
+				// numer skasowanego rekordu mógł zostać użyty ponownie, dla innej treści
+				if(bytes.length!=recordLength) throw new IOException("Rekord " + record + " zawiera inną treść niż oczekiwana");
+				loaded = bytes;
+			}
+			return bytes;
+		}
+		if(file==null) return body;
+		
+		byte[] bytes = new byte[length()];
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			f.readFully(bytes);
+		} finally {
+			f.close();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Zapisuje "ciało" wiadomości na strumień wyjściowy. Treść zapisana w pliku jest
+	 * przekazywana w porcjach, bez wczytywania całości do pamięci.
+	 * 
+	 * @param out strumień wyjściowy
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if(file==null) {
+			out.write(getBytes());
+			return;
+		}
+		
+		InputStream in = new FileInputStream(file);
+		byte[] buffer = BufferPool.acquire();
+		try {
+			int n;
+			while((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+		} finally {
+			in.close();
+			BufferPool.release(buffer);
+		}
+	}
+	
+	/**
+	 * Zapisuje "ciało" wiadomości na strumień wyjściowy lub, jeśli treść jest w pliku,
+	 * prosto na podany kanał - przy pomocy {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+	 * więc (tam, gdzie system to umożliwia) dane w ogóle nie trafiają do pamięci programu.
+	 * <p>
+	 * Przed zapisem na kanał strumień jest opróżniany, więc może to być strumień tego
+	 * samego połączenia (np. z zapisanym już nagłówkiem). Kanał musi działać w trybie blokującym.
+	 * 
+	 * @param out strumień wyjściowy
+	 * @param channel kanał, na który trafia treść z pliku, lub {@code null}
+	 * (wtedy działa tak samo jak {@link #writeTo(OutputStream)})
+	 */
+	public void writeTo(OutputStream out, WritableByteChannel channel) throws IOException {
+		if(file==null || channel==null) {
+			writeTo(out);
+			return;
+		}
+		
+		out.flush();
+		FileChannel source = new FileInputStream(file).getChannel();
+		try {
+			long position = 0;
+			while(position < fileLength) {
+				long n = source.transferTo(position, fileLength - position, channel);
+				if(n <= 0) throw new IOException("Plik z treścią jest krótszy niż powinien: " + file);
+				position += n;
+			}
+		} finally {
+			source.close();
+		}
+	}
+	
+	/**
+	 * Zapisuje fragment "ciała" wiadomości - tak jak {@link #writeTo(OutputStream, WritableByteChannel)},
+	 * ale z pliku odczytywane są wyłącznie bajty z podanego zakresu.
+	 * 
+	 * @param out strumień wyjściowy
+	 * @param channel kanał, na który trafia treść z pliku, lub {@code null}
+	 * @param offset numer pierwszego bajtu fragmentu
+	 * @param length długość fragmentu
 	 */
-	public byte[] getBytes() {
-		return body;
+	public void writeTo(OutputStream out, WritableByteChannel channel, long offset, long length) throws IOException {
+		if(file==null) {
+			out.write(getBytes(), (int) offset, (int) length);
+			return;
+		}
+		
+		if(channel!=null) {
+			out.flush();
+			FileChannel source = new FileInputStream(file).getChannel();
+			try {
+				long position = offset, end = offset + length;
+				while(position < end) {
+					long n = source.transferTo(position, end - position, channel);
+					if(n <= 0) throw new IOException("Plik z treścią jest krótszy niż powinien: " + file);
+					position += n;
+				}
+			} finally {
+				source.close();
+			}
+			return;
+		}
+		
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		byte[] buffer = BufferPool.acquire();
+		try {
+			f.seek(offset);
+			long left = length;
+			while(left > 0) {
+				int n = f.read(buffer, 0, (int) Math.min(buffer.length, left));
+				if(n==-1) throw new IOException("Plik z treścią jest krótszy niż powinien: " + file);
+				out.write(buffer, 0, n);
+				left -= n;
+			}
+		} finally {
+			f.close();
+			BufferPool.release(buffer);
+		}
 	}
 	
 	/**
@@ -163,6 +445,80 @@ public class MessageBody implements java.io.Serializable {
 	 * @return długość wiadomości
 	 */
 	public int length() {
+		return (int) Math.min(totalLength(), Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * @return długość wiadomości (w bajtach), również większa niż {@code Integer.MAX_VALUE}
+	 */
+	long totalLength() {
+		if(discarded) return discardedLength;
+		if(file!=null) return fileLength;
+		if(record!=0) return recordLength;
 		return body.length;
 	}
+	
+	/**
+	 * @return plik, w którym zapisana jest treść, lub {@code null} jeśli treść jest w pamięci
+	 */
+	public File getFile() {
+		return file!=null ? new File(file) : null;
+	}
+	
+	/**
+	 * @return numer rekordu bazy cache, w którym zapisana jest treść, lub {@code 0}
+	 * jeśli treść jest w pamięci lub w pliku
+	 */
+	long getRecord() {
+		return record;
+	}
+	
+	/**
+	 * @return napis jednoznacznie wskazujący treść zapisaną poza obiektem (plik lub rekord
+	 * bazy cache) lub {@code null} jeśli treść jest w obiekcie
+	 */
+	String getStorageKey() {
+		if(file!=null) return fileKey(file);
+		if(record!=0) return "record:" + record;
+		return null;
+	}
+	
+	/**
+	 * @return klucz (patrz {@link #getStorageKey()}) treści zapisanej w pliku o podanej ścieżce
+	 */
+	static String fileKey(String path) {
+		return "file:" + path;
+	}
+
+	/**
+	 * Sprawdza czy dwa obiekty odwołują się do tej samej treści zapisanej poza
+	 * nimi (w pliku lub rekordzie bazy cache).
+	 */
+	boolean sharesStorage(MessageBody other) {
+		if(file!=null) return file.equals(other.file);
+		return record!=0 && record==other.record;
+	}
+	
+	/**
+	 * Sprawdza czy treść nadal jest dostępna (plik z treścią mógł zostać usunięty).
+	 */
+	public boolean isAvailable() {
+		return file==null || new File(file).length()==fileLength;
+	}
+	
+	/**
+	 * Usuwa plik z treścią (jeśli treść jest zapisana w pliku). Wywoływane gdy obiekt
+	 * przestaje być potrzebny w cache.
+	 */
+	public void delete() {
+		if(file!=null) new File(file).delete();
+	}
+	
+	/**
+	 * @return {@code true} jeśli treść wiadomości została zapamiętana w obiekcie,
+	 * {@code false} jeśli została tylko przekazana dalej
+	 */
+	public boolean isStored() {
+		return !discarded;
+	}
 }
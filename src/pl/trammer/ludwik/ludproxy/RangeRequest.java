@@ -0,0 +1,238 @@
+package pl.trammer.ludwik.ludproxy;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Obsługa zapytań o fragmenty treści ({@code Range} i {@code If-Range}, RFC 7233)
+ * przy odpowiadaniu klientom z cache.
+ * <p>
+ * {@link #select(RequestHeader, ServerResponse)} sprawdza czy zapytanie dotyczy
+ * fragmentów odpowiedzi z cache i zwraca listę zakresów do wysłania w odpowiedzi
+ * {@code 206 Partial Content}. Dla kilku zakresów odpowiedź ma typ
+ * {@code multipart/byteranges} - nagłówki jej części przygotowuje
+ * {@link #partHeader(String, String, Range, long)}.
+ * <p>
+ * Nachodzące na siebie zakresy są łączone. Zapytania o bardzo wiele zakresów
+ * (więcej niż {@value #MAX_RANGES}) są traktowane jak zapytania o całą treść.
+ * <p>
+ * Wszystkie metody klasy są statyczne.
+ *
+ * @author Ludwik Trammer
+ */
+public class RangeRequest {
+	/**
+	 * Największa liczba zakresów (po połączeniu nachodzących na siebie), dla której
+	 * odpowiadamy {@code 206}.
+	 */
+	public static final int MAX_RANGES = 100;
+
+	private static final AtomicLong boundaries = new AtomicLong(System.currentTimeMillis());
+	private static final AtomicInteger served = new AtomicInteger();
+
+	/**
+	 * Zakres bajtów treści (obie granice włącznie).
+	 */
+	public static class Range {
+		final long first;
+		final long last;
+
+		Range(long first, long last) {
+			this.first = first;
+			this.last = last;
+		}
+
+		/**
+		 * @return numer pierwszego bajtu zakresu
+		 */
+		public long getFirst() {
+			return first;
+		}
+
+		/**
+		 * @return liczba bajtów w zakresie
+		 */
+		public long length() {
+			return last - first + 1;
+		}
+
+		/**
+		 * @param total długość całej treści
+		 * @return wartość pola {@code Content-Range} dla tego zakresu
+		 */
+		public String toContentRange(long total) {
+			return "bytes " + first + "-" + last + "/" + total;
+		}
+	}
+
+	/**
+	 * Sprawdza czy na zapytanie należy odpowiedzieć fragmentami odpowiedzi z cache.
+	 * <p>
+	 * Pole {@code Range} jest ignorowane (zwracane jest {@code null} - należy wysłać całą
+	 * odpowiedź) jeśli zapytanie nie używa metody {@code GET}, odpowiedź ma status inny niż
+	 * {@code 200}, pole jest niepoprawne, zakresów jest zbyt wiele, lub nie jest spełniony
+	 * warunek {@code If-Range} (znacznik porównywany "mocno", a data - dokładnie
+	 * z {@code Last-Modified}).
+	 *
+	 * @param request zapytanie klienta
+	 * @param cached odpowiedź z cache
+	 * @return zakresy do wysłania, pusta lista jeśli żaden zakres nie mieści się
+	 * w treści (odpowiedź {@code 416}) lub {@code null} jeśli należy wysłać całą treść
+	 */
+	public static List<Range> select(RequestHeader request, ServerResponse cached) {
+		String range = request.getField("Range");
+		if(range==null || !request.getMethod().equals("GET")) return null;
+
+		ResponseHeader header = cached.getHeader();
+		if(header.getStatus()!=200 || !cached.getBody().isStored()) return null;
+
+		String ifRange = request.getField("If-Range");
+		if(ifRange!=null && !ifRangeMatches(ifRange.trim(), header)) return null;
+
+		List<Range> ranges = parse(range, cached.getBody().totalLength());
+		if(ranges!=null && ranges.size() > MAX_RANGES) return null;
+		return ranges;
+	}
+
+	/**
+	 * Odczytuje zakresy z pola {@code Range}, dopasowując je do długości treści.
+	 *
+	 * @param value wartość pola {@code Range}
+	 * @param total długość treści
+	 * @return zakresy mieszczące się w treści (nachodzące na siebie połączone) lub
+	 * {@code null} jeśli pole jest niepoprawne
+	 */
+	static List<Range> parse(String value, long total) {
+		value = value.trim();
+		if(!value.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+
+		List<Range> ranges = new ArrayList<Range>();
+		boolean any = false;
+		for(String spec : value.substring(6).split(",")) {
+			spec = spec.trim();
+			if(spec.length()==0) continue;
+			any = true;
+
+			int dash = spec.indexOf('-');
+			if(dash==-1) return null;
+			long first, last;
+			try {
+				if(dash==0) {
+					// "-n" - ostatnie n bajtów
+					long suffix = parseNumber(spec.substring(1));
+					if(suffix==0) continue;
+					first = Math.max(0, total - suffix);
+					last = total - 1;
+				} else {
+					first = parseNumber(spec.substring(0, dash));
+					last = (dash==spec.length()-1) ? total - 1 : parseNumber(spec.substring(dash + 1));
+					if(last < first && dash!=spec.length()-1) return null;
+					last = Math.min(last, total - 1);
+				}
+			} catch(NumberFormatException e) {
+				return null;
+			}
+			if(first < total) ranges.add(new Range(first, last));
+		}
+		if(!any) return null;
+
+		return coalesce(ranges);
+	}
+
+	private static long parseNumber(String number) {
+		number = number.trim();
+		if(number.length()==0 || number.charAt(0)=='+' || number.charAt(0)=='-') throw new NumberFormatException(number);
+		return Long.parseLong(number);
+	}
+
+	/**
+	 * Łączy nachodzące na siebie (lub sąsiadujące) zakresy. Jeśli żadne nie nachodzą,
+	 * zostawia kolejność, o którą prosił klient.
+	 */
+	private static List<Range> coalesce(List<Range> ranges) {
+		if(ranges.size() < 2) return ranges;
+
+		List<Range> sorted = new ArrayList<Range>(ranges);
+		Collections.sort(sorted, new Comparator<Range>() {
+			public int compare(Range a, Range b) {
+				return a.first < b.first ? -1 : (a.first > b.first ? 1 : 0);
+			}
+		});
+
+		List<Range> merged = new ArrayList<Range>();
+		Range current = sorted.get(0);
+		for(int i=1; i<sorted.size(); i++) {
+			Range next = sorted.get(i);
+			if(next.first <= current.last + 1) {
+				current = new Range(current.first, Math.max(current.last, next.last));
+			} else {
+				merged.add(current);
+				current = next;
+			}
+		}
+		merged.add(current);
+
+		return merged.size()==ranges.size() ? ranges : merged;
+	}
+
+	private static boolean ifRangeMatches(String ifRange, ResponseHeader header) {
+		if(ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			String etag = header.getField("Etag");
+			return etag!=null && ConditionalRequest.matches(ifRange, etag, false);
+		}
+
+		HttpDate modified = header.getFieldAsDate("Last-Modified");
+		if(modified==null) return false;
+		try {
+			return HttpDate.parse(ifRange)==modified.getTime();
+		} catch(ParseException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return nowy separator części odpowiedzi {@code multipart/byteranges}
+	 */
+	static String newBoundary() {
+		return "LudProxy-" + Long.toHexString(boundaries.incrementAndGet());
+	}
+
+	/**
+	 * Zwraca nagłówek części odpowiedzi {@code multipart/byteranges} (poprzedzony separatorem).
+	 *
+	 * @param boundary separator części
+	 * @param type typ treści ({@code Content-Type} całej odpowiedzi) lub {@code null}
+	 * @param range zakres treści w tej części
+	 * @param total długość całej treści
+	 */
+	static String partHeader(String boundary, String type, Range range, long total) {
+		return "\r\n--" + boundary + "\r\n"
+				+ (type!=null ? "Content-Type: " + type + "\r\n" : "")
+				+ "Content-Range: " + range.toContentRange(total) + "\r\n\r\n";
+	}
+
+	/**
+	 * @return zakończenie odpowiedzi {@code multipart/byteranges}
+	 */
+	static String closing(String boundary) {
+		return "\r\n--" + boundary + "--\r\n";
+	}
+
+	/**
+	 * Odnotowuje wysłanie odpowiedzi {@code 206} z cache.
+	 */
+	static void served() {
+		served.incrementAndGet();
+	}
+
+	/**
+	 * @return liczba odpowiedzi {@code 206} wysłanych z cache
+	 */
+	public static int getServedCount() {
+		return served.get();
+	}
+}
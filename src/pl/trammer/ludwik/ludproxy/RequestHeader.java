@@ -150,9 +150,21 @@ public class RequestHeader extends Header {
 	 * @return nowy obiekt klasy {@code RequestHeader}
 	 */
 	public RequestHeader newForRetransmission() {
+		return newForRetransmission(false);
+	}
+	
+	/**
+	 * Działa tak samo jak {@link #newForRetransmission()}, ale pozwala zdecydować
+	 * czy połączenie z serwerem ma pozostać otwarte po otrzymaniu odpowiedzi.
+	 * 
+	 * @param keepAlive {@code true} jeśli połączenie ma być trwałe (żeby mogło
+	 * trafić do {@link UpstreamPool}), {@code false} jeśli serwer ma je zamknąć
+	 * @return nowy obiekt klasy {@code RequestHeader}
+	 */
+	public RequestHeader newForRetransmission(boolean keepAlive) {
 		RequestHeader newrh = new RequestHeader(this);
 		newrh.getReadyForRetransmition();
-		newrh.setField("Connection", "close");
+		newrh.setField("Connection", keepAlive ? "keep-alive" : "close");
 		newrh.setField("Host", host);
 		return newrh;
 	}
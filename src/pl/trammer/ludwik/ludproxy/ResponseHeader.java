@@ -1,5 +1,7 @@
 package pl.trammer.ludwik.ludproxy;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 
 import pl.trammer.ludwik.ludproxy.errors.*;
 
@@ -146,10 +148,37 @@ public class ResponseHeader extends Header {
 		
 		newrh.setField("Age", sr.getAge()+"");
 		
+		// RFC 2616 (14.18) - serwer bez zegara może nie wysłać daty, ale pośrednik musi ją dodać
+		if(!newrh.containsField("Date")) newrh.setField("Date", HttpDate.formatNow());
 		
 		return newrh;
 	}
 
+	/**
+	 * Zwraca pola nagłówka przygotowanego do wysłania dalej (tak jak w {@link #newForRetransmission(ServerResponse)}),
+	 * z wyjątkiem pól zależnych od zapytania i chwili wysłania ({@code Connection} i {@code Age}),
+	 * w postaci gotowej do wysłania - bez pierwszej linii i bez kończącej nagłówek pustej linii.
+	 * <p>
+	 * Używane przy wysyłaniu odpowiedzi z cache, dla których te bajty są zawsze takie same.
+	 * 
+	 * @return pola nagłówka lub {@code null}, jeśli nagłówek nie określa długości treści
+	 * (wtedy o sposobie przesłania treści decyduje zapytanie, więc trzeba użyć {@link #newForRetransmission(ServerResponse)})
+	 */
+	byte[] getRetransmissionTemplate() {
+		if(!containsField("Content-Length")) return null;
+		
+		ResponseHeader template = new ResponseHeader(this);
+		template.getReadyForRetransmition();
+		template.removeField("Connection");
+		template.removeField("Age");
+		
+		StringBuilder result = new StringBuilder();
+		for(Map.Entry<String, String> field : template.fields.entrySet()) {
+			result.append(field.getKey()).append(": ").append(field.getValue()).append("\r\n");
+		}
+		return result.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
 	/**
 	 * Zwraca wygenerowany łańcuch znaków reprezentujący pierwszą linię nagłówka
 	 * odpowiedzi HTTP, zgodną ze specyfiką danej odpowiedzi.
@@ -0,0 +1,183 @@
+package pl.trammer.ludwik.ludproxy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Strumień wyjściowy połączenia z klientem, sklejający drobne zapisy (nagłówek,
+ * nagłówki fragmentów {@code chunked}, niewielkie treści) w większe porcje.
+ * <p>
+ * Dane trafiają najpierw do bufora (z {@link BufferPool}), a do gniazda dopiero gdy
+ * bufor się zapełni lub zostanie wywołana metoda {@link #flush()}. Duże bloki nie
+ * są kopiowane - jeśli połączenie ma kanał, zawartość bufora i taki blok wysyłane są
+ * razem, jednym zapisem zbierającym ({@code write(ByteBuffer[])}). Bufor pobierany
+ * jest z puli przy pierwszym zapisie i wraca do niej po każdym opróżnieniu, więc
+ * czekające na kolejne zapytania połączenia go nie zajmują.
+ * <p>
+ * Klasa odpowiada również za ustawienia gniazd ({@code TCP_NODELAY}, wielkość buforów
+ * systemowych), wspólne dla wszystkich połączeń - patrz {@link #configure(boolean, int)}.
+ *
+ * @author Ludwik Trammer
+ */
+public class ResponseWriter extends OutputStream {
+	private static volatile boolean tcpNoDelay = true;
+	private static volatile int socketBufferSize = 0;
+
+	private static final AtomicLong writes = new AtomicLong();
+	private static final AtomicLong bytes = new AtomicLong();
+
+	private final OutputStream out;
+	private final SocketChannel channel;
+	private byte[] buf = null;
+	private int count = 0;
+
+	/**
+	 * Ustawia opcje gniazd, używane przez {@link #configureSocket(Socket)}.
+	 * Zmiana dotyczy tylko nowych połączeń.
+	 *
+	 * @param tcpNoDelay czy wyłączyć algorytm Nagle'a (małe porcje danych są wtedy
+	 * wysyłane od razu, a nie dopiero po potwierdzeniu poprzednich)
+	 * @param socketBufferSize wielkość buforów nadawczego i odbiorczego gniazda
+	 * w bajtach ({@code 0} - domyślna wielkość systemowa)
+	 */
+	public static void configure(boolean tcpNoDelay, int socketBufferSize) {
+		if(socketBufferSize < 0) throw new IllegalArgumentException("Wielkość bufora gniazda nie może być ujemna");
+
+		ResponseWriter.tcpNoDelay = tcpNoDelay;
+		ResponseWriter.socketBufferSize = socketBufferSize;
+	}
+
+	/**
+	 * Ustawia opcje gniazda zgodnie z {@link #configure(boolean, int)}. Używane dla
+	 * połączeń z klientami i z serwerami docelowymi.
+	 */
+	public static void configureSocket(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		if(socketBufferSize > 0) {
+			socket.setSendBufferSize(socketBufferSize);
+			socket.setReceiveBufferSize(socketBufferSize);
+		}
+	}
+
+	/**
+	 * Tworzy strumień zapisujący do podanego gniazda (przez jego kanał, jeśli gniazdo go ma).
+	 * Kanał musi działać w trybie blokującym.
+	 *
+	 * @param socket gniazdo połączenia z klientem
+	 */
+	public ResponseWriter(Socket socket) throws IOException {
+		this.out = socket.getOutputStream();
+		this.channel = socket.getChannel();
+	}
+
+	public void write(int b) throws IOException {
+		if(buf==null) buf = BufferPool.acquire();
+		if(count==buf.length) flushBuffer();
+		buf[count++] = (byte) b;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		write(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * Zapisuje kolejno podane fragmenty. Jeśli razem z zawartością bufora się w nim nie
+	 * mieszczą, wszystko jest wysyłane od razu (gdy połączenie ma kanał - jednym zapisem
+	 * zbierającym, bez kopiowania fragmentów do bufora).
+	 */
+	public void write(ByteBuffer... parts) throws IOException {
+		if(buf==null) buf = BufferPool.acquire();
+
+		long length = 0;
+		for(ByteBuffer part : parts) length += part.remaining();
+
+		if(count + length <= buf.length) {
+			for(ByteBuffer part : parts) {
+				int n = part.remaining();
+				part.get(buf, count, n);
+				count += n;
+			}
+			return;
+		}
+
+		if(channel==null) {
+			flushBuffer();
+			for(ByteBuffer part : parts) {
+				out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+				writes.incrementAndGet();
+				bytes.addAndGet(part.remaining());
+			}
+			return;
+		}
+
+		ByteBuffer[] all = new ByteBuffer[parts.length + 1];
+		all[0] = ByteBuffer.wrap(buf, 0, count);
+		System.arraycopy(parts, 0, all, 1, parts.length);
+		send(all, count + length);
+		count = 0;
+	}
+
+	/**
+	 * Wysyła zawartość bufora i oddaje bufor do puli.
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		if(buf!=null) {
+			BufferPool.release(buf);
+			buf = null;
+		}
+	}
+
+	/**
+	 * Wysyła zawartość bufora i zamyka strumień gniazda.
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return {@code true} jeśli w buforze są dane czekające na wysłanie
+	 */
+	public boolean hasPendingData() {
+		return count > 0;
+	}
+
+	private void flushBuffer() throws IOException {
+		if(count==0) return;
+
+		if(channel!=null) {
+			send(new ByteBuffer[] {ByteBuffer.wrap(buf, 0, count)}, count);
+		} else {
+			out.write(buf, 0, count);
+			writes.incrementAndGet();
+			bytes.addAndGet(count);
+		}
+		count = 0;
+	}
+
+	private void send(ByteBuffer[] parts, long length) throws IOException {
+		long remaining = length;
+		while(remaining > 0) {
+			remaining -= channel.write(parts);
+			writes.incrementAndGet();
+		}
+		bytes.addAndGet(length);
+	}
+
+	/**
+	 * Zwraca krótki opis stanu (do wypisywania w komunikatach).
+	 */
+	public static String getStats() {
+		long w = writes.get();
+		return "zapisy do klientów: " + w + " (średnio " + (w > 0 ? bytes.get()/w : 0) + " B)"
+				+ ", TCP_NODELAY: " + (tcpNoDelay ? "tak" : "nie");
+	}
+}
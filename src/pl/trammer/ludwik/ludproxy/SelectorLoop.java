@@ -0,0 +1,323 @@
+package pl.trammer.ludwik.ludproxy;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import pl.trammer.ludwik.ludproxy.errors.HttpServiceUnavailable;
+import pl.trammer.ludwik.ludproxy.gui.MainWindow;
+
+/**
+ * Pętla zdarzeń oparta o {@link Selector}, która w trybie nieblokującym przyjmuje
+ * połączenia od klientów i odczytuje nagłówki ich zapytań.
+ * <p>
+ * Dopiero gdy w buforze znajdzie się kompletny nagłówek zapytania połączenie
+ * przekazywane jest do obsługi przez {@link ClientConnection} w wątku z
+ * {@link ConnectionExecutor}. Po obsłużeniu zapytania trwałe połączenie wraca
+ * do pętli zdarzeń i czeka na kolejne zapytanie nie zajmując żadnego wątku.
+ * Dzięki temu tysiące bezczynnych połączeń keep-alive nic prawie nie kosztują.
+ * <p>
+ * Zwykle działa kilka pętli (każda w osobnym wątku), między które po kolei
+ * rozdzielane są nowe połączenia.
+ * <p>
+ * Połączenia, przez które klient zbyt długo nic nie przysyła (ani kolejnego zapytania,
+ * ani reszty rozpoczętego nagłówka), są zamykane (patrz {@link #setIdleTimeout(int)}).
+ *
+ * @author Ludwik Trammer
+ */
+public class SelectorLoop implements Runnable {
+	/**
+	 * Maksymalna wielkość nagłówka zapytania (w bajtach). Połączenia, które przysyłają
+	 * dłuższe nagłówki są zamykane.
+	 */
+	private static final int MAX_HEADER_SIZE = 64*1024;
+
+	/**
+	 * Co ile milisekund pętla sprawdza, czy któreś połączenie nie jest bezczynne zbyt długo.
+	 */
+	private static final long IDLE_CHECK_INTERVAL = 1000;
+
+	private static volatile long idleTimeout = 60*1000;
+
+	private final Selector selector;
+	private final ConnectionExecutor executor;
+	private final Queue<ClientConnection> toRegister = new ConcurrentLinkedQueue<ClientConnection>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+	private final Info info;
+
+	private ServerSocketChannel serverChannel = null;
+	private SelectorLoop[] loops = null;
+	private MainWindow window = null;
+	private int nextLoop = 0;
+	private long lastIdleCheck = System.currentTimeMillis();
+
+	/**
+	 * Tworzy nową pętlę zdarzeń.
+	 *
+	 * @param num numer pętli (używany w komunikatach)
+	 * @param executor obiekt, któremu przekazywane są połączenia z kompletnym nagłówkiem zapytania
+	 */
+	public SelectorLoop(int num, ConnectionExecutor executor) throws IOException {
+		this.selector = Selector.open();
+		this.executor = executor;
+		this.info = new Info("selektor " + num);
+	}
+
+	/**
+	 * Ustawia po jakim czasie bezczynności połączenia z klientami czekające w pętlach
+	 * zdarzeń są zamykane. Zmiana dotyczy wszystkich pętli.
+	 *
+	 * @param seconds czas w sekundach ({@code 0} - połączenia nigdy nie są zamykane)
+	 */
+	public static void setIdleTimeout(int seconds) {
+		idleTimeout = seconds*1000L;
+	}
+
+	/**
+	 * Uruchamia {@code count} pętli zdarzeń obsługujących połączenia przychodzące
+	 * na {@code serverChannel}. Pierwsza pętla (przyjmująca nowe połączenia)
+	 * działa w bieżącym wątku, więc metoda nigdy nie kończy działania.
+	 *
+	 * @param serverChannel kanał na którym serwer nasłuchuje połączeń
+	 * @param count liczba pętli zdarzeń (wątków selektora)
+	 * @param executor obiekt, któremu przekazywane są połączenia z kompletnym nagłówkiem zapytania
+	 * @param window okno GUI lub {@code null} jeśli program działa w trybie "no-gui"
+	 */
+	public static void serve(ServerSocketChannel serverChannel, int count, ConnectionExecutor executor, MainWindow window) throws IOException {
+		SelectorLoop[] loops = new SelectorLoop[Math.max(1, count)];
+		for(int i=0; i<loops.length; i++) loops[i] = new SelectorLoop(i+1, executor);
+
+		for(int i=1; i<loops.length; i++) {
+			Thread t = new Thread(loops[i], "LudProxy-selector-" + (i+1));
+			t.setDaemon(true);
+			t.start();
+		}
+
+		// pierwsza pętla dodatkowo przyjmuje nowe połączenia
+		serverChannel.configureBlocking(false);
+		serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		loops[0].serverChannel = serverChannel;
+		loops[0].loops = loops;
+		loops[0].window = window;
+		loops[0].run();
+	}
+
+	/**
+	 * Oddaje połączenie pod opiekę pętli zdarzeń, która poczeka aż klient
+	 * przyśle kompletny nagłówek kolejnego zapytania. Metoda może być
+	 * wywoływana z dowolnego wątku.
+	 *
+	 * @param connection połączenie, które czeka na kolejne zapytanie
+	 */
+	public void park(ClientConnection connection) {
+		toRegister.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Główna pętla zdarzeń.
+	 */
+	public void run() {
+		while(true) {
+			List<ClientConnection> ready = new ArrayList<ClientConnection>();
+
+			try {
+				selector.select(idleTimeout > 0 ? IDLE_CHECK_INTERVAL : 0);
+				registerParked();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if(!key.isValid()) continue;
+
+					if(key.isAcceptable()) {
+						accept();
+					} else if(key.isReadable()) {
+						ClientConnection connection = (ClientConnection) key.attachment();
+						if(read(key, connection)) {
+							// mamy cały nagłówek, kanał wraca do trybu blokującego i trafia do wątku
+							key.cancel();
+							ready.add(connection);
+						}
+					}
+				}
+
+				closeIdle();
+
+				// anulowane klucze zostaną wyrejestrowane dopiero przy następnym select()
+				if(!ready.isEmpty()) selector.selectNow();
+			} catch(IOException e) {
+				info.err("Problem z selektorem: " + e);
+			}
+
+			for(ClientConnection connection : ready) {
+				dispatch(connection);
+			}
+		}
+	}
+
+	/**
+	 * Zamyka połączenia, przez które klient nic nie przysłał dłużej niż {@link #idleTimeout}.
+	 */
+	private void closeIdle() {
+		long timeout = idleTimeout;
+		long now = System.currentTimeMillis();
+		if(timeout <= 0 || now - lastIdleCheck < IDLE_CHECK_INTERVAL) return;
+		lastIdleCheck = now;
+
+		for(SelectionKey key : selector.keys()) {
+			ClientConnection connection = (ClientConnection) key.attachment();
+			if(connection==null || !key.isValid()) continue; // gniazdo nasłuchujące
+
+			if(now - connection.idleSince > timeout) {
+				key.cancel();
+				close(connection);
+			}
+		}
+	}
+
+	/**
+	 * Przyjmuje nowe połączenie i przydziela je (po kolei) jednej z pętli zdarzeń.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if(channel==null) return;
+
+		Socket socket = channel.socket();
+		info.say("Nowe połączenie od klienta " + socket.getInetAddress() + ":" + socket.getPort());
+
+		SelectorLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		loop.park(new ClientConnection(channel, loop, window));
+		info.say(Server.getStats(executor));
+	}
+
+	/**
+	 * Rejestruje w selektorze połączenia oddane przez wątki obsługi.
+	 */
+	private void registerParked() {
+		ClientConnection connection;
+		while((connection = toRegister.poll()) != null) {
+			SocketChannel channel = connection.getChannel();
+			connection.idleSince = System.currentTimeMillis();
+			try {
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+
+				// klient mógł przysłać już całe zapytanie zanim połączenie do nas wróciło
+				if(read(key, connection)) {
+					key.cancel();
+					selector.selectNow();
+					dispatch(connection);
+				}
+			} catch(IOException e) {
+				close(connection);
+			}
+		}
+	}
+
+	/**
+	 * Odczytuje dostępne dane z kanału i dopisuje je do bufora nagłówka połączenia.
+	 *
+	 * @return {@code true} jeśli w buforze znajduje się już kompletny nagłówek zapytania
+	 */
+	private boolean read(SelectionKey key, ClientConnection connection) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteStore pending = connection.getPendingInput();
+		int n;
+		int read = 0;
+
+		try {
+			readBuffer.clear();
+			while((n = channel.read(readBuffer)) > 0) {
+				pending.write(readBuffer.array(), 0, n);
+				readBuffer.clear();
+				read += n;
+			}
+		} catch(IOException e) {
+			n = -1;
+		}
+		if(read > 0) connection.idleSince = System.currentTimeMillis();
+
+		if(n==-1) {
+			// klient zakończył połączenie
+			key.cancel();
+			close(connection);
+			return false;
+		}
+
+		if(isHeaderComplete(connection, pending)) return true;
+
+		if(pending.size() > MAX_HEADER_SIZE) {
+			info.err("Nagłówek zapytania jest zbyt długi. Zamykam połączenie.");
+			key.cancel();
+			close(connection);
+		}
+		return false;
+	}
+
+	/**
+	 * Sprawdza czy w buforze znajduje się kompletny nagłówek zapytania,
+	 * czyli czy (po pominięciu pustych linii na początku) występuje w nim
+	 * pusta linia. Przeszukiwane są tylko nowe dane (i trzy poprzedzające je
+	 * bajty, w których mógł zacząć się koniec nagłówka).
+	 */
+	private static boolean isHeaderComplete(ClientConnection connection, ByteStore pending) {
+		byte[] b = pending.array();
+		int size = pending.size();
+
+		if(connection.headerStart < 0) {
+			// nagłówek może być poprzedzony dowolną liczbą pustych linii
+			int start = connection.headerScanned;
+			while(start < size && (b[start]=='\r' || b[start]=='\n')) start++;
+			connection.headerScanned = start;
+			if(start==size) return false;
+			connection.headerStart = start;
+		}
+
+		for(int i=Math.max(connection.headerStart, connection.headerScanned - 3); i+3 < size; i++) {
+			if(b[i]=='\r' && b[i+1]=='\n' && b[i+2]=='\r' && b[i+3]=='\n') return true;
+		}
+		connection.headerScanned = size;
+		return false;
+	}
+
+	/**
+	 * Przekazuje połączenie z kompletnym nagłówkiem do wątku obsługi.
+	 */
+	private void dispatch(ClientConnection connection) {
+		try {
+			connection.getChannel().configureBlocking(true);
+			executor.execute(connection);
+		} catch(RejectedExecutionException e) {
+			// wszystkie wątki zajęte, a kolejka pełna - klient musi spróbować później
+			info.err("Brak wolnych wątków do obsługi połączenia (" + executor + ")");
+			try {
+				connection.clientSocket.getOutputStream().write(new HttpServiceUnavailable("Serwer proxy jest w tej chwili przeciążony. Spróbuj ponownie za chwilę.")
+						.getErrorResponseAsBytes(null, null));
+			} catch(IOException ignore) {
+			} finally {
+				close(connection);
+			}
+		} catch(IOException e) {
+			close(connection);
+		}
+	}
+
+	private void close(ClientConnection connection) {
+		try {
+			connection.getChannel().close();
+		} catch(IOException ignore) {}
+	}
+}
@@ -1,32 +1,44 @@
 package pl.trammer.ludwik.ludproxy;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.swing.SwingUtilities;
 
+import pl.trammer.ludwik.ludproxy.errors.HttpServiceUnavailable;
 import pl.trammer.ludwik.ludproxy.gui.MainWindow;
 
+import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 
 /**
  * Główna klasa serwera proxy. Czeka na połączenia od klienta
- * i uruchamia nowe wątki {@link ClientConnection} do
- * ich obsługi.
+ * i przekazuje je do obsługi przez obiekty {@link ClientConnection},
+ * uruchamiane w wątkach zarządzanych przez {@link ConnectionExecutor}.
  * 
  * @author Ludwik Trammer
  */
 public class Server {
 	ServerSocket serverSocket;
 	MainWindow window;
+	ConnectionExecutor executor;
 
 	/**
 	 * Uruchamienie programu.
 	 * @param args Argumenty wywołania programu z konsoli tekstowej.
 	 * Program przyjmuje argumenty wywołania w następującej postaci:
 	 * <p>
-	 * {@code [--quiet] [--no-gui] [interfejs [port]]}
+	 * {@code [--quiet] [--no-gui] [--executor=thread|pool|virtual] [--threads=N] [--queue=N] [--selectors=N] [--client-idle-timeout=S]
+	 * [--upstream-max-idle=N] [--upstream-max-per-host=N] [--upstream-idle-timeout=S] [--origin-timeout=S]
+	 * [--dns-ttl=S] [--dns-negative-ttl=S]
+	 * [--stale-while-revalidate=S] [--revalidator-threads=N] [--revalidator-queue=N]
+	 * [--stale-if-error=S] [--buffer-size=B] [--buffer-pool=N] [--spill-threshold=B]
+	 * [--cache-commit-delay=MS] [--cache-commit-batch=N] [--memory-cache=B] [--memory-cache-object=B]
+	 * [--cache-size=B] [--cache-entries=N] [--cache-policy=lru|lfu|gdsf]
+	 * [--no-tcp-nodelay] [--socket-buffer=B] [--generate-etags] [interfejs [port]]}
 	 * <p>
 	 * Więcej informacji
 	 * na ten temat znajduje się w pliku {@code README.html} w
@@ -42,7 +54,50 @@ public class Server {
 		OptionParser parser = new OptionParser();
 		parser.accepts("quiet");
 		parser.accepts("no-gui");
-		OptionSet options = parser.parse(args);
+		parser.accepts("executor").withRequiredArg().defaultsTo("pool");
+		parser.accepts("threads").withRequiredArg().ofType(Integer.class).defaultsTo(200);
+		parser.accepts("queue").withRequiredArg().ofType(Integer.class).defaultsTo(1000);
+		parser.accepts("selectors").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		parser.accepts("client-idle-timeout").withRequiredArg().ofType(Integer.class).defaultsTo(60);
+		parser.accepts("upstream-max-idle").withRequiredArg().ofType(Integer.class).defaultsTo(32);
+		parser.accepts("upstream-max-per-host").withRequiredArg().ofType(Integer.class).defaultsTo(6);
+		parser.accepts("upstream-idle-timeout").withRequiredArg().ofType(Integer.class).defaultsTo(30);
+		parser.accepts("origin-timeout").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		parser.accepts("dns-ttl").withRequiredArg().ofType(Integer.class).defaultsTo(60);
+		parser.accepts("dns-negative-ttl").withRequiredArg().ofType(Integer.class).defaultsTo(10);
+		parser.accepts("stale-while-revalidate").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		parser.accepts("revalidator-threads").withRequiredArg().ofType(Integer.class).defaultsTo(2);
+		parser.accepts("revalidator-queue").withRequiredArg().ofType(Integer.class).defaultsTo(100);
+		parser.accepts("stale-if-error").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		parser.accepts("buffer-size").withRequiredArg().ofType(Integer.class).defaultsTo(16*1024);
+		parser.accepts("buffer-pool").withRequiredArg().ofType(Integer.class).defaultsTo(256);
+		parser.accepts("spill-threshold").withRequiredArg().ofType(Long.class).defaultsTo(1024*1024L);
+		parser.accepts("cache-commit-delay").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		parser.accepts("cache-commit-batch").withRequiredArg().ofType(Integer.class).defaultsTo(100);
+		parser.accepts("memory-cache").withRequiredArg().ofType(Long.class).defaultsTo(64*1024*1024L);
+		parser.accepts("memory-cache-object").withRequiredArg().ofType(Long.class).defaultsTo(1024*1024L);
+		parser.accepts("cache-size").withRequiredArg().ofType(Long.class).defaultsTo(0L);
+		parser.accepts("cache-entries").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		parser.accepts("cache-policy").withRequiredArg().ofType(String.class).defaultsTo("lru");
+		parser.accepts("no-tcp-nodelay");
+		parser.accepts("socket-buffer").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+		parser.accepts("generate-etags");
+		
+		OptionSet options = null;
+		ConnectionExecutor executor = null;
+		try {
+			options = parser.parse(args);
+			executor = new ConnectionExecutor(
+					ConnectionExecutor.Mode.valueOf(((String) options.valueOf("executor")).toUpperCase()),
+					(Integer) options.valueOf("threads"),
+					(Integer) options.valueOf("queue"));
+		} catch(OptionException e) {
+			System.err.println("Niepoprawne argumenty wywołania: " + e.getMessage());
+			System.exit(104);
+		} catch(IllegalArgumentException e) {
+			System.err.println("Nieznany tryb obsługi połączeń! Dostępne są: thread, pool, virtual.");
+			System.exit(104);
+		}
 		List<String> arguments = options.nonOptionArguments();
 
 		int serverPort = 8080;
@@ -59,8 +114,64 @@ public class Server {
 		}
 
 		Info.setVerbose(!quiet);
+		UpstreamPool.configure(
+				(Integer) options.valueOf("upstream-max-idle"),
+				(Integer) options.valueOf("upstream-max-per-host"),
+				(Integer) options.valueOf("upstream-idle-timeout"));
+		UpstreamPool.setTimeout((Integer) options.valueOf("origin-timeout"));
+		SelectorLoop.setIdleTimeout((Integer) options.valueOf("client-idle-timeout"));
+		DnsCache.configure(
+				(Integer) options.valueOf("dns-ttl"),
+				(Integer) options.valueOf("dns-negative-ttl"));
+		BackgroundRevalidator.configure(
+				(Integer) options.valueOf("stale-while-revalidate"),
+				(Integer) options.valueOf("revalidator-threads"),
+				(Integer) options.valueOf("revalidator-queue"));
+		ServerResponse.setDefaultStaleIfError((Integer) options.valueOf("stale-if-error"));
+		try {
+			BufferPool.configure(
+					(Integer) options.valueOf("buffer-size"),
+					(Integer) options.valueOf("buffer-pool"));
+			CacheEviction.configure(
+					(Long) options.valueOf("cache-size"),
+					(Integer) options.valueOf("cache-entries"),
+					CacheEviction.policyForName((String) options.valueOf("cache-policy")));
+			ResponseWriter.configure(
+					!options.has("no-tcp-nodelay"),
+					(Integer) options.valueOf("socket-buffer"));
+		} catch(IllegalArgumentException e) {
+			System.err.println("Niepoprawne argumenty wywołania: " + e.getMessage());
+			System.exit(104);
+		}
+		MessageBody.setSpillThreshold((Long) options.valueOf("spill-threshold"));
+		Cache.setWriteBehind(
+				(Integer) options.valueOf("cache-commit-delay"),
+				(Integer) options.valueOf("cache-commit-batch"));
+		Cache.setGenerateEtags(options.has("generate-etags"));
+		MemoryCache.configure(
+				(Long) options.valueOf("memory-cache"),
+				(Long) options.valueOf("memory-cache-object"));
+
+		new Server(serverName, serverPort, gui, executor, (Integer) options.valueOf("selectors"));
+	}
 
-		new Server(serverName, serverPort, gui);
+	/**
+	 * Zwraca opis stanu serwera (wątków, puli połączeń, pamięci DNS itd.) do wypisania
+	 * w komunikatach. Przydatne przy dobieraniu parametrów wywołania programu.
+	 * 
+	 * @param executor obiekt zarządzający wątkami obsługi połączeń
+	 * @return opis stanu serwera
+	 */
+	static String getStats(ConnectionExecutor executor) {
+		return "Stan obsługi połączeń: " + executor
+				+ "; " + UpstreamPool.getStats()
+				+ "; " + DnsCache.getStats()
+				+ "; sklejone zapytania: " + CollapsedForwarding.getCollapsedCount()
+				+ "; fragmenty z cache: " + RangeRequest.getServedCount()
+				+ "; " + BackgroundRevalidator.getStats()
+				+ "; " + BufferPool.getStats()
+				+ "; " + ResponseWriter.getStats()
+				+ "; " + Cache.getStats();
 	}
 
 	/**
@@ -73,15 +184,24 @@ public class Server {
 	 * @param serverPort port na którym serwer ma nasłuchiwać
 	 * @param gui czy program ma wyświetlić graficzne okienko z infromacjami o
 	 * działaniu proxy (stan cache, podgląd połączeń itd.)
+	 * @param executor obiekt decydujący w jakich wątkach obsługiwane będą połączenia
+	 * @param selectors liczba wątków z pętlami zdarzeń ({@link SelectorLoop}), które
+	 * w trybie nieblokującym przyjmują połączenia i odczytują nagłówki zapytań, lub {@code 0}
+	 * jeśli połączenia mają być od początku do końca obsługiwane przez wątki z {@code executor}
 	 */
-	public Server(String serverName, final int serverPort, boolean gui) {
+	public Server(String serverName, final int serverPort, boolean gui, ConnectionExecutor executor, int selectors) {
 		Info info = new Info();
+		this.executor = executor;
 
 		info.say("Uruchamianie serwera proxy");
 
 		try {
 			final InetAddress serverAddress = InetAddress.getByName(serverName);
-			serverSocket = new ServerSocket(serverPort, 50, serverAddress);
+			// gniazdo zawsze tworzymy przez kanał - połączenia z klientami mają wtedy
+			// swoje kanały, przez które można wysyłać treści z cache prosto z plików
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverSocket = serverChannel.socket();
+			serverSocket.bind(new InetSocketAddress(serverAddress, serverPort), 50);
 			info.say("Stworzono gniazdo do nasłuchu na " + serverAddress + ":" + serverPort);
 			info.say("Serwer oczekuje na połączenia");
 			
@@ -98,13 +218,31 @@ public class Server {
 				
 			}
 			
+			if(selectors > 0) {
+				info.say("Połączenia obsługuje " + selectors + " wątków z pętlami zdarzeń");
+				SelectorLoop.serve(serverChannel, selectors, executor, window);
+			}
+			
 			while (true) {
 				Socket clientSocket = serverSocket.accept();
 				info.say("Nowe połączenie od klienta "
 						+ clientSocket.getInetAddress()
 						+ ":"
 						+ clientSocket.getPort());
-				new ClientConnection(clientSocket, window).start();
+				try {
+					executor.execute(new ClientConnection(clientSocket, window));
+				} catch(RejectedExecutionException e) {
+					// wszystkie wątki zajęte, a kolejka pełna - klient musi spróbować później
+					info.err("Brak wolnych wątków do obsługi połączenia (" + executor + ")");
+					try {
+						clientSocket.getOutputStream().write(new HttpServiceUnavailable("Serwer proxy jest w tej chwili przeciążony. Spróbuj ponownie za chwilę.")
+								.getErrorResponseAsBytes(null, null));
+					} catch(IOException ignore) {
+					} finally {
+						clientSocket.close();
+					}
+				}
+				info.say(getStats(executor));
 			}
 		} catch (UnknownHostException e) {
 			info.err("Podany adres interfejsu do nasłuchu jest nieprawidłowy.");
@@ -4,7 +4,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
 import pl.trammer.ludwik.ludproxy.errors.*;
@@ -29,12 +29,39 @@ public class ServerResponse implements java.io.Serializable {
 	private InetAddress serverIp;
 	boolean conditionalRequest = false; // czy wysłaliśmy zapytanie warunkowe
 	boolean conditionalRequestVerified = false; // czy serwer odpowiedział 403 Not Motified
+	private transient HttpError error = null; // błąd serwera, z powodu którego wysłaliśmy kopię z cache
+	
+	/**
+	 * Domyślne okno {@code stale-if-error} (w sekundach) dla odpowiedzi, które go nie określają.
+	 */
+	private static int defaultStaleIfError = 0;
 	
 	/**
 	 * Data i godzina o której poproszono zdalny serwer o odpowiedź.
 	 */
 	private HttpDate request_sent;
 	
+	/*
+	 * Wartości potrzebne do oceny świeżości, wyliczane tylko raz (patrz computeFreshness()),
+	 * a nie przy każdym sprawdzaniu - i zapisywane w cache razem z odpowiedzią.
+	 */
+	private boolean freshnessComputed = false;
+	private int freshnessLifetime;
+	private boolean serverLifetime; // czy czas świeżości określił serwer (a nie heurystyka)
+	private int initialAge;
+	private long responseTime;
+	private boolean mustRevalidate;
+	private boolean noStaleUse;
+	private int staleIfError;
+	private int staleWhileRevalidate;
+	
+	/**
+	 * Pola nagłówka gotowe do wysłania klientowi (patrz {@link #getHeaderTemplate()}),
+	 * tworzone przy pierwszym użyciu - {@link #NO_TEMPLATE} jeśli nie da się ich przygotować.
+	 */
+	private transient volatile byte[] headerTemplate;
+	private static final byte[] NO_TEMPLATE = new byte[0];
+	
 	/**
 	 * Konstruktor tworzy obiekt odpowiedzi serwera wysyłając do niego zapytanie,
 	 * a następnie zapisując odpowiedź i informacje o niej wewnątrz obiektu.
@@ -78,10 +105,24 @@ public class ServerResponse implements java.io.Serializable {
 	 * Konstrukcja ta jest wykorzystywana do zapytań warunkowych, czyli w sytuacjach gdy pobrana z cache odpowiedź
 	 * straciła już swoją "świeżość" (gdyby nadal była aktualna zostałaby zwrócona bezpośrednio). Jeśli argument
 	 * {@code cached} jest obecny konstruktor zmienia zapytanie w zapytanie warunkowe, dodając odpowiednie
-	 * wartości do nagłówków "If-Match" i "If-Modified-Since". Jeśli serwer odpowie wiadomością o kodzie 304
+	 * wartości do nagłówków "If-None-Match" i "If-Modified-Since" (łącząc je z warunkami klienta - patrz
+	 * {@link ConditionalRequest}). Jeśli serwer odpowie wiadomością o kodzie 304 dotyczącą odpowiedzi z cache,
 	 * odpowiedź do klienta zostanie przygotowana na podstawie (uważanej wcześniej za "nieświeżą") odpowiedzi
 	 * z cache. Wszystkie pola nagłówków istniejące w nowej odpowiedzi zastępują jednak odpowiadające im pola nagłówków
-	 * z odpowiedzi starej.
+	 * z odpowiedzi starej. Jeśli klient ma już aktualną wersję, dostaje tylko {@code 304 Not Modified}.
+	 * <p>
+	 * Połączenie z serwerem pobierane jest z {@link UpstreamPool}, do której wraca po
+	 * odczytaniu całej odpowiedzi (o ile serwer się na to zgadza).
+	 * <p>
+	 * Treść odpowiedzi, która nie może trafić do cache (patrz {@link Cache#isCacheable(RequestHeader, ResponseHeader)}),
+	 * jest tylko przekazywana klientowi, bez zapamiętywania jej w obiekcie (podobnie jak treść
+	 * zapytania przekazywana serwerowi).
+	 * <p>
+	 * Jeśli nie uda się połączyć z serwerem, serwer nie odpowie na czas lub odpowie błędem
+	 * (kod 5xx), a odpowiedź z cache {@linkplain #canServeStaleOnError() może zostać użyta
+	 * w takiej sytuacji}, klient zamiast strony błędu dostaje odpowiedź z cache
+	 * (z odpowiednimi nagłówkami {@code Warning}). Informację o błędzie zwraca wtedy
+	 * {@link #getOriginError()}.
 	 * 
 	 * @param request Nagłówek zapytania, które zostanie wysłane do serwera. Tworzony obiekt
 	 * będzie symbolizował odpowiedź serwera na to zapytanie.
@@ -94,90 +135,185 @@ public class ServerResponse implements java.io.Serializable {
 	 */
 	public ServerResponse(RequestHeader request, LudInputStream clientInput, OutputStream clientOutput, ServerResponse cached) throws HttpError, IOException {
 		this.request = request;
-		Socket serverSocket=null;
-		LudInputStream serverInput=null;
-		OutputStream serverOutput=null;
+		UpstreamPool.Connection connection = null;
+		
+		// czy w razie awarii serwera możemy zamiast błędu wysłać klientowi kopię z cache (stale-if-error)
+		boolean staleFallback = cached!=null && cached.canServeStaleOnError();
 		
 		try{
-			// połącz z serwerem
-			serverIp = InetAddress.getByName(request.getHost());
-			serverSocket = new Socket(serverIp, request.getPort());
+			HttpError originError = null;
+			
+			try {
+				InetAddress address = DnsCache.resolve(request.getHost());
+				
+				RequestHeader outgoing = request.newForRetransmission(UpstreamPool.isEnabled());
+				
+				if(cached!=null) {
+					/* 
+					 * Mamy tę stronę w cache, ale jest już nieświeża.
+					 * Zapytajmy warunkowo (razem z warunkami klienta, jeśli jakieś przysłał).
+					 */
+					conditionalRequest = ConditionalRequest.addValidators(outgoing, request, cached.getHeader());
+				}
+				
+				// zapytania bez ciała możemy bezpiecznie powtórzyć
+				boolean repeatable = request.getMethod().equals("GET") || request.getMethod().equals("HEAD");
+				
+				while(true) {
+					try {
+						// połącz z serwerem (lub weź gotowe połączenie z puli)
+						connection = UpstreamPool.acquire(request.getHost(), request.getPort(), address);
+						serverIp = connection.getAddress();
+						
+						// przekaż serwerowi nagłówek
+						connection.getOutput().write(outgoing.getBytes());
 			
-			serverInput = new LudInputStream(serverSocket.getInputStream());
-			serverOutput = serverSocket.getOutputStream();
+						// oraz treść zapytania
+						new MessageBody(clientInput, request, connection.getOutput(), null, false);
+						
+						//zanotuj czas zapytania
+						request_sent = new HttpDate();
 			
-			if(cached!=null && !request.containsField("If-Modified-Since") && !request.containsField("If-Match")) {
-				/* 
-				 * Mamy tę stronę w cache, ale jest już nieświeża.
-				 * Po upewnieniu się, że klient nie robi warunkowego zapytania
-				 * sami takie zrobimy.
-				 */
-				if(cached.getHeader().containsField("Etag")) {
-					request.setField("If-Match", cached.getHeader().getField("Etag"));
-					conditionalRequest = true;
+						//zinterpretuj nagłówek odpowiedzi
+						header = new ResponseHeader(connection.getInput());
+						break;
+					} catch(IOException e) {
+						boolean reused = connection!=null && connection.wasReused();
+						if(connection!=null) connection.close();
+						connection = null;
+						
+						/*
+						 * Serwer mógł zamknąć połączenie z puli tuż przed tym jak zaczęliśmy
+						 * z niego korzystać. Wtedy (i tylko wtedy) próbujemy jeszcze raz.
+						 */
+						if(!repeatable || !reused) throw e;
+					}
 				}
-				if(cached.getHeader().containsField("Last-Modified")) {
-					request.setField("If-Modified-Since", cached.getHeader().getField("Last-Modified"));
-					conditionalRequest = true;
-				}	
+				
+				if(staleFallback && header.getStatus()/100==5) {
+					originError = new HttpBadGateway("Serwer docelowy odpowiedział błędem " + header.getStatus() + ".");
+				}
+			} catch (UnknownHostException e) {
+				originError = new HttpBadRequest("Nie znaleziono serwera o podanym adresie.");
+			} catch (SocketTimeoutException e) {
+				originError = new HttpGatewayTimeout("Serwer docelowy nie odpowiedział w wyznaczonym czasie.");
+			} catch (IOException e) {
+				originError = new HttpBadGateway("Nie udało się połączyć z serwerem docelowym (" + e.getMessage() + ").");
+			} catch (HttpError e) {
+				originError = e;
 			}
-
-			// przekaż serwerowi nagłówek
-			serverOutput.write(request.newForRetransmission().getBytes());
-
-			// oraz treść zapytania
-			new MessageBody(clientInput, request, serverOutput, null);
 			
-			//zanotuj czas zapytania
-			request_sent = new HttpDate();
-
-			//zinterpretuj nagłówek odpowiedzi
-			header = new ResponseHeader(serverInput);
+			if(originError!=null) {
+				if(!staleFallback) throw originError;
+				
+				/* Serwer nie działa, ale mamy jego starą odpowiedź, którą wolno nam w takiej sytuacji wysłać */
+				error = originError;
+				header = cached.getHeader();
+				body = cached.getBody();
+				request_sent = cached.request_sent;
+				
+				if(clientOutput!=null) {
+					ResponseHeader stale = header.newForRetransmission(cached);
+					stale.appenedField("Warning", "110 LudProxy \"Response is stale\"");
+					stale.appenedField("Warning", "111 LudProxy \"Revalidation failed\"");
+					clientOutput.write(stale.getBytes());
+					body.writeTo(clientOutput);
+				}
+				return;
+			}
 			
-			if(conditionalRequest && header.getStatus()==304) {
+			// czy po odczytaniu tej odpowiedzi połączenie będzie mogło posłużyć kolejnym zapytaniom?
+			boolean reusable = isConnectionReusable();
+			
+			if(conditionalRequest && header.getStatus()==304
+					&& ConditionalRequest.validates(header, cached.getHeader(), request.containsField("If-None-Match"))) {
 				/* Nasza stara wersja z cache jest znowu świeża :) */
 				
 				conditionalRequestVerified = true;
 				
 				// Nagłówki z nowej odpowiedzi są ważniejsze od tych ze starej.
-				// Zastępujemy. Po czym stary nagłówek staje się nowym.
-				cached.getHeader().getFields().putAll(header.getFields());
+				// Zastępujemy w kopii (nagłówek z cache może być współdzielony przez inne wątki),
+				// po czym kopia starego nagłówka staje się nowym.
+				ResponseHeader merged = new ResponseHeader(cached.getHeader());
+				merged.getFields().putAll(header.getFields());
 				
 				// Nowa data odbioru
-				cached.getHeader().received_date = header.received_date;
+				merged.received_date = header.received_date;
 				
-				header = cached.getHeader();
+				header = merged;
 				body = cached.getBody();
 				
-				// przekaż klientowi nagłówek
-				if(clientOutput!=null) clientOutput.write(header.newForRetransmission(this).getBytes());
-				
-				// przekaż klientowi treść
-				if(clientOutput!=null)clientOutput.write(body.getBytes());				
+				if(clientOutput!=null) {
+					if(ConditionalRequest.evaluate(request, header)==ConditionalRequest.NOT_MODIFIED) {
+						// klient ma już tę wersję - wystarczy mu nagłówek
+						clientOutput.write(notModified(header.newForRetransmission(this)).getBytes());
+					} else {
+						clientOutput.write(header.newForRetransmission(this).getBytes());
+						body.writeTo(clientOutput);
+					}
+				}
 			} else {
 				/* Dostaliśmy zupełnie nową wersję do przekazania klientowi.
 				 * Przekażmy.
 				 */
 				
-				// przekaż klientowi nagłówek
-				if(clientOutput!=null) clientOutput.write(header.newForRetransmission(this).getBytes());
+				// warunki klienta zastąpiliśmy naszymi, więc może się okazać, że klient ma już tę wersję
+				// (np. jego If-Modified-Since jest późniejsze niż data naszej kopii) - wtedy treść tylko odczytujemy
+				OutputStream target = clientOutput;
+				if(clientOutput!=null && conditionalRequest
+						&& ConditionalRequest.evaluate(request, header)==ConditionalRequest.NOT_MODIFIED) {
+					clientOutput.write(notModified(header.newForRetransmission(this)).getBytes());
+					target = null;
+				} else if(clientOutput!=null) {
+					// przekaż klientowi nagłówek
+					clientOutput.write(header.newForRetransmission(this).getBytes());
+				}
 
 				// odczytaj dane od serwera, na bierząco przekazując do klienta
-				body = new MessageBody(serverInput, header, clientOutput, request);
+				// (zapamiętujemy je tylko jeśli odpowiedź trafi do cache lub nie ma komu jej przekazać)
+				body = new MessageBody(connection.getInput(), header, target, request,
+						target==null || Cache.isCacheable(request, header));
+			}
+			
+			// odpowiedź odczytana w całości, połączenie może wrócić do puli
+			if(reusable) {
+				UpstreamPool.release(connection);
+				connection = null;
 			}
 			
 			// Sami siebie umieszczamy w cache!
 			Cache.put(request, this);
 	
-		} catch (UnknownHostException e) {
-			throw new HttpBadRequest("Nie znaleziono serwera o podanym adresie.");
 		} finally {
-			// zamknijmy połączenie z serwerem
-			if(serverInput!=null) serverInput.close();
-			if(serverOutput!=null) serverOutput.close();
-			if(serverSocket!=null) serverSocket.close();
+			// zamknijmy połączenie z serwerem (jeśli nie wróciło do puli)
+			if(connection!=null) connection.close();
 		}
 	}
+	
+	/**
+	 * Zmienia nagłówek gotowy do wysłania klientowi w nagłówek odpowiedzi {@code 304 Not Modified}.
+	 */
+	private static ResponseHeader notModified(ResponseHeader header) {
+		header.removeField("Transfer-Encoding");
+		return header.setStatus(304).setStatusDescription("Not Modified");
+	}
+	
+	/**
+	 * Sprawdza (na podstawie świeżo odczytanego nagłówka odpowiedzi) czy po odczytaniu
+	 * odpowiedzi połączenie z serwerem będzie mogło zostać użyte ponownie. Jest tak
+	 * jeśli serwer nie zapowiedział jego zamknięcia, a koniec ciała odpowiedzi nie
+	 * jest oznaczany zamknięciem połączenia.
+	 */
+	private boolean isConnectionReusable() {
+		if(!UpstreamPool.isEnabled()) return false;
+		if(header.fieldContainsValue("Connection", "close")) return false;
+		if(!header.getProtocolVersion().equals("1.1") && !header.fieldContainsValue("Connection", "keep-alive")) return false;
+		
+		int status = header.getStatus();
+		if(request.getMethod().equals("HEAD") || status/100==1 || status==204 || status==304) return true;
+		
+		return header.fieldContainsValue("Transfer-Encoding", "chunked") || header.containsField("Content-Length");
+	}
 
 	/**
 	 * Konstruktor kopiujący, pozwalający opcjonalnie podmienić poszczególne
@@ -191,6 +327,8 @@ public class ServerResponse implements java.io.Serializable {
 	 * @param header obiekt {@link ResponseHeader}, który stanie się nagłówkiem
 	 * odpowiedzi w nowym obiekcie odpowiedzi serwera, lub {@code null} jeśli
 	 * nagłówek odpowiedzi ma zostać skopiowany z obiektu {@code original}.
+	 * Można też podać nagłówek obiektu {@code original} - wtedy będzie on
+	 * współdzielony przez oba obiekty (i nie może być już zmieniany).
 	 * @param body obiekt {@link MessageBody}, który stanie się ciałem
 	 * odpowiedzi w nowym obiekcie odpowiedzi serwera, lub {@code null} jeśli
 	 * ciało odpowiedzi ma zostać skopiowany z obiektu {@code original}.
@@ -201,6 +339,24 @@ public class ServerResponse implements java.io.Serializable {
 		this.body = (body!=null ? body : original.body);
 		this.invalidated = original.invalidated;
 		this.request_sent = original.request_sent;
+		
+		if(header==null || header==original.header) {
+			// ten sam nagłówek, więc te same pola do wysłania
+			headerTemplate = original.headerTemplate;
+		}
+		
+		if((header==null || header==original.header) && original.freshnessComputed) {
+			// ten sam nagłówek, więc i te same wyliczenia
+			freshnessComputed = true;
+			freshnessLifetime = original.freshnessLifetime;
+			serverLifetime = original.serverLifetime;
+			initialAge = original.initialAge;
+			responseTime = original.responseTime;
+			mustRevalidate = original.mustRevalidate;
+			noStaleUse = original.noStaleUse;
+			staleIfError = original.staleIfError;
+			staleWhileRevalidate = original.staleWhileRevalidate;
+		}
 	}
 
 	/**
@@ -261,6 +417,10 @@ public class ServerResponse implements java.io.Serializable {
 	 * jako maksymalny wiek odpowiedzi uznawane jest 10% czasu, który minął od ostatniej
 	 * modyfikacji zasobu. Jeśli data ostatniej modyfikacji zasobu nie jest znana uznaje się,
 	 * że odpowiedź jest świeża przez 10 minut.
+	 * <p>
+	 * Wszystko, co zależy tylko od odpowiedzi serwera, wyliczane jest raz (patrz
+	 * {@link #computeFreshness()}) - przy każdym wywołaniu przetwarzane są tylko
+	 * instrukcje z zapytania klienta.
 	 * 
 	 * @return {@code true} jeśli odpowiedź jest uznawana za świeżą i {@code false} w
 	 * przeciwnym wypadku.
@@ -269,69 +429,190 @@ public class ServerResponse implements java.io.Serializable {
 	 */
 	public boolean isFresh() {
 		if(invalidated) return false;
-		if(header.fieldContainsValue("Cache-Control", "must-revalidate")) return false;
+		computeFreshness();
+		if(mustRevalidate) return false;
 		
-		Integer server_max_age = null; 
-		Integer client_max_age = null;
-		Integer reall_max_age = null;
-		Integer min_fresh = null ;
-		Integer max_stale = null;
+		int age = getAge();
+		int lifetime = freshnessLifetime;
 		
-		try {
-			server_max_age = Integer.parseInt(header.getCacheControlValue("max-age"));
-		} catch(NumberFormatException e) { /* zostaje null */ }
+		// bez nagłówka Cache-Control w zapytaniu nie ma czego sprawdzać
+		if(!request.containsField("Cache-Control")) return lifetime > age;
 		
-		if(server_max_age==null) {
-			// jeśli nie udało się z nagłówkiem Cache-Control to wtedy (i tylko wtedy!)
-			// możemy spróbować z nagłówkiem Expires
-			HttpDate Expires = header.getFieldAsDate("Expires");
-			if(Expires!=null) {
-				server_max_age = header.getFieldAsDate("Expires").timeAsInt() - new HttpDate().timeAsInt();
-			}
+		Integer client_max_age = parseSeconds(request.getCacheControlValue("max-age"));
+		Integer min_fresh = parseSeconds(request.getCacheControlValue("min-fresh"));
+		Integer max_stale = parseSeconds(request.getCacheControlValue("max-stale"));
+		
+		if(client_max_age!=null) {
+			/*
+			 * Klient też określił max-age.
+			 * Wybierzmy bardziej restrykcyjną wersję.
+			 */
+			lifetime = (serverLifetime ? Math.min(lifetime, client_max_age) : client_max_age);
 		}
 		
-		try {
-			client_max_age = Integer.parseInt(request.getCacheControlValue("max-age"));
-		} catch(NumberFormatException e) { /* zostaje null */ }
+		return lifetime + (max_stale!=null ? max_stale : 0) > age - (min_fresh!=null ? min_fresh : 0);
+	}
+	
+	/**
+	 * Wylicza (jeśli jeszcze nie zostały wyliczone) wartości potrzebne do oceny świeżości:
+	 * czas świeżości, wiek odpowiedzi w chwili jej otrzymania i instrukcje {@code Cache-Control}
+	 * serwera. Zależą one tylko od nagłówka odpowiedzi i momentów wysłania zapytania i
+	 * otrzymania odpowiedzi, więc zmieniają się tylko gdy odpowiedź zostanie odświeżona.
+	 * <p>
+	 * Czas świeżości to instrukcja {@code max-age} z nagłówka {@code Cache-Control}, a jeśli
+	 * jej nie ma - różnica między datami z nagłówków {@code Expires} i {@code Date}. Jeśli
+	 * serwer nie określił ani jednego, ani drugiego, czas świeżości to 10% czasu, który minął
+	 * od ostatniej modyfikacji zasobu (do daty z nagłówka {@code Date}) lub, jeśli data
+	 * ostatniej modyfikacji nie jest znana, 10 minut.
+	 */
+	void computeFreshness() {
+		if(freshnessComputed) return;
 		
-		try {
-			min_fresh = Integer.parseInt(request.getCacheControlValue("min-fresh"));
-		} catch(NumberFormatException e) { /* zostaje null */ }
+		responseTime = header.receivedDate().getTime();
+		HttpDate date = header.getFieldAsDate("Date");
+		long dateValue = (date!=null ? date.getTime() : responseTime);
 		
+		// wiek w momencie otrzymania (RFC 2616, 13.2.3)
+		int age_value = 0;
 		try {
-			max_stale = Integer.parseInt(request.getCacheControlValue("max-stale"));
-		} catch(NumberFormatException e) { /* zostaje null */ }
-		
-		if((server_max_age==null) && (client_max_age==null)) {
-			/* Ani klient ani serwer nie podał nam maksymalnego wieku.
-			 * Musimy sami sobie coś wymyśleć.
-			 * Wymyślmy więc, że maksymalny wiek to 10% czasu, który
-			 * minął od ostatniej modyfikacji.
-			 * Lub 10 minut, jeśli nie znamy daty ostatniej modfyikacji.
-			 */
+			age_value = Integer.parseInt(header.getField("Age"));
+		} catch(NumberFormatException e) { /* zostaje 0 */ }
+		int apparent_age = Math.max(0, (int)(responseTime/1000 - dateValue/1000));
+		int corrected_received_age = Math.max(apparent_age, age_value);
+		int response_delay = (int)(responseTime/1000 - request_sent.getTime()/1000);
+		initialAge = corrected_received_age + response_delay;
 		
-			HttpDate LastModified = header.getFieldAsDate("Last-Modified");
-			
-			if(LastModified==null) {
+		Integer max_age = parseSeconds(header.getCacheControlValue("max-age"));
+		serverLifetime = true;
+		if(max_age!=null) {
+			freshnessLifetime = max_age;
+		} else if(header.containsField("Expires")) {
+			// jeśli nie udało się z nagłówkiem Cache-Control to wtedy (i tylko wtedy!)
+			// możemy spróbować z nagłówkiem Expires (niepoprawna data oznacza przeszłość)
+			HttpDate expires = header.getFieldAsDate("Expires");
+			freshnessLifetime = (expires!=null ? (int)((expires.getTime() - dateValue)/1000) : 0);
+		} else {
+			// serwer nic nie powiedział - sami sobie coś wymyślmy
+			serverLifetime = false;
+			HttpDate lastModified = header.getFieldAsDate("Last-Modified");
+			if(lastModified==null) {
 				// Nie znamy daty ostaniej modyfikacji. Sztywno ustawiamy na 10 minut.
-				reall_max_age = 60*10;
+				freshnessLifetime = 60*10;
 			} else {
 				// 10% czasu od ostatniej modyfikacji
-				reall_max_age = (int)((new HttpDate().timeAsInt()-LastModified.timeAsInt())*0.10);
+				freshnessLifetime = (int)(Math.max(0, dateValue - lastModified.getTime())/1000*0.10);
 			}
-		} else if((server_max_age!=null) && (client_max_age!=null)) { 
-			/* 
-			 * Zarówno klient jak i serwer określiły max-age.
-			 * Wybierzmy bardziej restrykcyjną wersję.
-			 */
-			reall_max_age = Math.min(server_max_age, client_max_age);
-		} else if(server_max_age!=null) { // tylko serwer
-			reall_max_age = server_max_age;
-		} else { // tylko klient
-			reall_max_age = client_max_age;
 		}
 		
-		return reall_max_age + (max_stale!=null ? max_stale : 0) > getAge() - (min_fresh!=null ? min_fresh : 0);
+		mustRevalidate = header.fieldContainsValue("Cache-Control", "must-revalidate");
+		noStaleUse = mustRevalidate
+				|| header.fieldContainsValue("Cache-Control", "proxy-revalidate")
+				|| header.fieldContainsValue("Cache-Control", "no-cache");
+		
+		Integer window = parseSeconds(header.getCacheControlValue("stale-if-error"));
+		staleIfError = (window!=null ? window : -1);
+		window = parseSeconds(header.getCacheControlValue("stale-while-revalidate"));
+		staleWhileRevalidate = (window!=null ? window : -1);
+		
+		freshnessComputed = true;
+	}
+	
+	/**
+	 * Wymusza ponowne wyliczenie wartości potrzebnych do oceny świeżości (po zmianie nagłówka).
+	 */
+	void resetFreshness() {
+		freshnessComputed = false;
+	}
+	
+	private static Integer parseSeconds(String value) {
+		if(value==null) return null;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Zwraca czas świeżości odpowiedzi (w sekundach) z punktu widzenia serwera, czyli
+	 * bez uwzględniania instrukcji od klienta.
+	 * 
+	 * @return czas świeżości odpowiedzi w sekundach
+	 * @see #isFresh()
+	 */
+	public int getFreshnessLifetime() {
+		computeFreshness();
+		return freshnessLifetime;
+	}
+	
+	/**
+	 * Zwraca okno {@code stale-while-revalidate} określone przez serwer.
+	 * 
+	 * @return okno w sekundach lub {@code -1} jeśli serwer go nie określił
+	 */
+	public int getStaleWhileRevalidate() {
+		computeFreshness();
+		return staleWhileRevalidate;
+	}
+	
+	/**
+	 * Sprawdza czy odpowiedź, która straciła już świeżość, może zostać mimo to
+	 * wysłana do klienta. Jest tak jeśli serwer tego nie zabronił (instrukcjami
+	 * {@code must-revalidate}, {@code proxy-revalidate} lub {@code no-cache}),
+	 * odpowiedź nie została {@linkplain #invalidate() unieważniona}, a od utraty
+	 * świeżości nie minęło więcej niż {@code window} sekund.
+	 * 
+	 * @param window o ile sekund odpowiedź może przekroczyć swój czas świeżości
+	 * @return {@code true} jeśli odpowiedź może zostać wysłana do klienta
+	 */
+	public boolean isStaleUsable(int window) {
+		if(invalidated) return false;
+		computeFreshness();
+		if(noStaleUse) return false;
+		
+		return getAge() - freshnessLifetime <= window;
+	}
+
+	/**
+	 * Ustawia domyślne okno {@code stale-if-error}, stosowane do odpowiedzi, które same
+	 * go nie określają. Zmiana dotyczy wszystkich wątków.
+	 * 
+	 * @param seconds czas w sekundach ({@code 0} - kopie z cache są wysyłane w razie błędu
+	 * serwera tylko jeśli pozwala na to sama odpowiedź lub zapytanie)
+	 */
+	public static void setDefaultStaleIfError(int seconds) {
+		defaultStaleIfError = seconds;
+	}
+	
+	/**
+	 * Sprawdza czy odpowiedź (pobrana z cache) może zostać wysłana do klienta w sytuacji,
+	 * gdy serwer nie działa lub odpowiada błędem (RFC 5861). Okno czasu, w którym jest to
+	 * dozwolone, określa instrukcja {@code stale-if-error} z nagłówka {@code Cache-Control}
+	 * odpowiedzi (lub wartość ustawiona przez {@link #setDefaultStaleIfError(int)}) albo ta sama
+	 * instrukcja w zapytaniu klienta - wybierane jest dłuższe z nich.
+	 * 
+	 * @return {@code true} jeśli w razie błędu serwera można wysłać tę odpowiedź
+	 * @see #isStaleUsable(int)
+	 */
+	public boolean canServeStaleOnError() {
+		computeFreshness();
+		int window = (staleIfError >= 0 ? staleIfError : defaultStaleIfError);
+		
+		try {
+			window = Math.max(window, Integer.parseInt(request.getCacheControlValue("stale-if-error")));
+		} catch(NumberFormatException e) { /* klient nic nie mówi */ }
+		
+		return window > 0 && isStaleUsable(window);
+	}
+	
+	/**
+	 * Zwraca błąd serwera, z powodu którego zamiast jego odpowiedzi wysłaliśmy
+	 * klientowi odpowiedź z cache.
+	 * 
+	 * @return błąd lub {@code null} jeśli odpowiedź rzeczywiście pochodzi od serwera
+	 */
+	public HttpError getOriginError() {
+		return error;
 	}
 
 	/** 
@@ -341,31 +622,17 @@ public class ServerResponse implements java.io.Serializable {
 	 * <p>
 	 * Wiek obliczany jest na podstawie daty z nagłówka "Date" odpowiedzi,
 	 * momentu wysłania zapytania, momentu otrzymania odpowiedzi, nagłówka
-	 * "Age" odpowiedzi i bierzącego czasu.
+	 * "Age" odpowiedzi i bierzącego czasu. Wszystko poza bieżącym czasem wyliczane
+	 * jest tylko raz (wiek w momencie otrzymania odpowiedzi), więc wywołanie tej metody
+	 * jest tanie.
 	 * 
 	 * @return wiek wiadomości w sekundach, zgodny z definicją wieku z RFC 2616
 	 * @see #isFresh()
 	 */
 	public int getAge() {
-		int age_value; 
-		int date_value = (header.getFieldAsDate("Date")==null ? new HttpDate().timeAsInt() : header.getFieldAsDate("Date").timeAsInt());
-		int request_time = request_sent.timeAsInt();
-		int response_time = header.receivedDate().timeAsInt();
-		int now = new HttpDate().timeAsInt();
-		try {
-			age_value = Integer.parseInt(header.getField("Age"));
-		} catch(NumberFormatException e) {
-			age_value = 0;
-		}
-
-		int apparent_age = Math.max(0, response_time - date_value);
-		int corrected_received_age = Math.max(apparent_age, age_value);
-		int response_delay = response_time - request_time;
-		int corrected_initial_age = corrected_received_age + response_delay;
-		int resident_time = now - response_time;
-		int current_age = corrected_initial_age + resident_time;
-
-		return current_age;
+		computeFreshness();
+		int resident_time = (int)(System.currentTimeMillis()/1000 - responseTime/1000);
+		return initialAge + resident_time;
 	}
 	
 	/**
@@ -418,8 +685,27 @@ public class ServerResponse implements java.io.Serializable {
 	  * że będzie tam poprawna wartość, więc jest to metoda wystarczająca.
 	  * 
 	  */
-	public int getContentLength() {
-		return Integer.parseInt(header.getField("Content-Length"));
+	public long getContentLength() {
+		return Long.parseLong(header.getField("Content-Length"));
+	}
+	
+	/**
+	 * Zwraca pola nagłówka gotowe do wysłania klientowi (patrz {@link ResponseHeader#getRetransmissionTemplate()}).
+	 * Są przygotowywane tylko raz, a kopie odpowiedzi z tym samym nagłówkiem
+	 * (np. tworzone przez {@link Cache#get(RequestHeader)}) dostają je razem z nim.
+	 * <p>
+	 * Nagłówek odpowiedzi nie może już być potem zmieniany.
+	 * 
+	 * @return pola nagłówka lub {@code null} jeśli nie da się ich przygotować z wyprzedzeniem
+	 */
+	byte[] getHeaderTemplate() {
+		byte[] template = headerTemplate;
+		if(template==null) {
+			template = header.getRetransmissionTemplate();
+			if(template==null) template = NO_TEMPLATE;
+			headerTemplate = template;
+		}
+		return template==NO_TEMPLATE ? null : template;
 	}
 	
 }
\ No newline at end of file
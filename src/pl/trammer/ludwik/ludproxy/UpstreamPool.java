@@ -0,0 +1,304 @@
+package pl.trammer.ludwik.ludproxy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pula trwałych połączeń z serwerami docelowymi. Dzięki niej kolejne zapytania
+ * do tego samego serwera (tzn. tej samej pary {@code host:port}) mogą korzystać
+ * z już nawiązanego połączenia TCP, zamiast za każdym razem nawiązywać nowe.
+ * <p>
+ * Pula przechowuje tylko połączenia bezczynne. Ich liczba jest ograniczona
+ * zarówno w sumie, jak i dla pojedynczego serwera, a połączenia nieużywane
+ * dłużej niż określony czas są zamykane. Przed ponownym użyciem każde połączenie
+ * jest sprawdzane, czy serwer go w międzyczasie nie zamknął.
+ * <p>
+ * Wszystkie metody klasy są statyczne.
+ *
+ * @author Ludwik Trammer
+ */
+public class UpstreamPool {
+	private static int maxIdle = 32;
+	private static int maxPerHost = 6;
+	private static long idleTimeout = 30*1000;
+	private static int timeout = 0;
+
+	/**
+	 * Bezczynne połączenia. Najdawniej używane na początku listy.
+	 */
+	private static final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+	private static final AtomicInteger hits = new AtomicInteger();
+	private static final AtomicInteger misses = new AtomicInteger();
+	private static final AtomicInteger stale = new AtomicInteger();
+
+	/**
+	 * Ustawia ograniczenia puli. Zmiany dotyczą wszystkich wątków.
+	 *
+	 * @param maxIdle maksymalna liczba bezczynnych połączeń w puli ({@code 0} wyłącza
+	 * ponowne używanie połączeń)
+	 * @param maxPerHost maksymalna liczba bezczynnych połączeń z jednym serwerem
+	 * @param idleTimeout czas (w sekundach) po którym nieużywane połączenie jest zamykane
+	 */
+	public static void configure(int maxIdle, int maxPerHost, int idleTimeout) {
+		UpstreamPool.maxIdle = maxIdle;
+		UpstreamPool.maxPerHost = maxPerHost;
+		UpstreamPool.idleTimeout = idleTimeout*1000L;
+	}
+
+	/**
+	 * Ustawia jak długo czekamy na nawiązanie połączenia z serwerem i na kolejne
+	 * dane od niego. Zmiana dotyczy nowo nawiązywanych połączeń.
+	 *
+	 * @param timeout czas w sekundach ({@code 0} - bez ograniczeń)
+	 */
+	public static void setTimeout(int timeout) {
+		UpstreamPool.timeout = timeout*1000;
+	}
+
+	/**
+	 * @return {@code true} jeśli połączenia z serwerami mogą być używane ponownie
+	 */
+	public static boolean isEnabled() {
+		return maxIdle > 0 && maxPerHost > 0;
+	}
+
+	/**
+	 * Zwraca połączenie z podanym serwerem - bezczynne połączenie z puli
+	 * (jeśli takie istnieje i nadal działa) lub nowo nawiązane.
+	 *
+	 * @param host nazwa serwera (taka jak w {@link RequestHeader#getHost()})
+	 * @param port port serwera
+	 * @param address adres IP serwera, używany jeśli trzeba nawiązać nowe połączenie
+	 * @return połączenie z serwerem
+	 */
+	public static Connection acquire(String host, int port, InetAddress address) throws IOException {
+		String key = host + ":" + port;
+		Connection found;
+
+		while((found = takeIdle(key)) != null) {
+			if(found.isUsable()) {
+				hits.incrementAndGet();
+				return found;
+			}
+			stale.incrementAndGet();
+			found.close();
+		}
+
+		misses.incrementAndGet();
+		// gniazdo tworzymy przez kanał, żeby przed ponownym użyciem móc je sprawdzić bez czekania
+		Socket socket = SocketChannel.open().socket();
+		try {
+			socket.connect(new InetSocketAddress(address, port), timeout);
+			socket.setSoTimeout(timeout);
+			ResponseWriter.configureSocket(socket);
+		} catch(IOException e) {
+			socket.close();
+			throw e;
+		}
+		return new Connection(key, socket);
+	}
+
+	/**
+	 * Zwraca połączenie do puli, żeby mogło zostać ponownie wykorzystane.
+	 * Jeśli pula jest pełna połączenie jest zamykane.
+	 * <p>
+	 * Połączenie może zostać zwrócone tylko jeśli odpowiedź serwera została
+	 * w całości odczytana, a serwer nie zapowiedział zamknięcia połączenia.
+	 *
+	 * @param connection połączenie do zwrócenia
+	 */
+	public static void release(Connection connection) {
+		if(!isEnabled()) {
+			connection.close();
+			return;
+		}
+
+		connection.lastUsed = System.currentTimeMillis();
+		Connection evicted = null;
+
+		synchronized(idle) {
+			int sameHost = 0;
+			for(Connection c : idle) {
+				if(c.key.equals(connection.key)) sameHost++;
+			}
+
+			if(sameHost >= maxPerHost) {
+				evicted = connection;
+			} else {
+				idle.addLast(connection);
+				if(idle.size() > maxIdle) evicted = idle.removeFirst();
+			}
+		}
+
+		if(evicted!=null) evicted.close();
+	}
+
+	/**
+	 * Wyjmuje z puli ostatnio używane bezczynne połączenie z danym serwerem,
+	 * przy okazji zamykając połączenia, które były nieużywane zbyt długo.
+	 */
+	private static Connection takeIdle(String key) {
+		LinkedList<Connection> expired = new LinkedList<Connection>();
+		Connection result = null;
+		long now = System.currentTimeMillis();
+
+		synchronized(idle) {
+			Iterator<Connection> it = idle.iterator();
+			while(it.hasNext()) {
+				Connection c = it.next();
+				if(now - c.lastUsed > idleTimeout) {
+					it.remove();
+					expired.add(c);
+				}
+			}
+
+			Iterator<Connection> back = idle.descendingIterator();
+			while(back.hasNext()) {
+				Connection c = back.next();
+				if(c.key.equals(key)) {
+					back.remove();
+					result = c;
+					break;
+				}
+			}
+		}
+
+		for(Connection c : expired) c.close();
+		return result;
+	}
+
+	/**
+	 * @return liczba zapytań, które skorzystały z połączenia z puli
+	 */
+	public static int getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return liczba zapytań, które musiały nawiązać nowe połączenie
+	 */
+	public static int getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return liczba połączeń z puli, które okazały się zamknięte przez serwer
+	 */
+	public static int getStaleCount() {
+		return stale.get();
+	}
+
+	/**
+	 * @return liczba bezczynnych połączeń w puli
+	 */
+	public static int getIdleCount() {
+		synchronized(idle) {
+			return idle.size();
+		}
+	}
+
+	/**
+	 * Zwraca krótki opis stanu puli (do wypisywania w komunikatach).
+	 */
+	public static String getStats() {
+		return "połączenia z serwerami - z puli: " + getHits()
+				+ ", nowe: " + getMisses()
+				+ ", zamknięte przez serwer: " + getStaleCount()
+				+ ", bezczynne: " + getIdleCount();
+	}
+
+	/**
+	 * Pojedyncze połączenie z serwerem docelowym.
+	 */
+	public static class Connection {
+		private final String key;
+		private final Socket socket;
+		private final LudInputStream input;
+		private final OutputStream output;
+		private long lastUsed;
+		private boolean reused = false;
+		private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+		private Connection(String key, Socket socket) throws IOException {
+			this.key = key;
+			this.socket = socket;
+			this.input = new LudInputStream(socket.getInputStream());
+			this.output = socket.getOutputStream();
+		}
+
+		/**
+		 * Sprawdza czy połączenie nadaje się do ponownego użycia, czyli czy nie jest
+		 * zamknięte i czy serwer nie przysłał w nim nic niespodziewanego (np. informacji
+		 * o zamknięciu połączenia). Kanał połączenia jest na chwilę przełączany w tryb
+		 * nieblokujący, więc sprawdzenie nie czeka na serwer.
+		 */
+		private boolean isUsable() {
+			if(socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+
+			SocketChannel channel = socket.getChannel();
+			try {
+				if(input.available() > 0) return false;
+
+				probe.clear();
+				channel.configureBlocking(false);
+				try {
+					// -1 oznacza, że serwer zamknął połączenie; jakiekolwiek dane też nie są tu mile widziane
+					if(channel.read(probe)!=0) return false;
+				} finally {
+					channel.configureBlocking(true);
+				}
+			} catch(IOException e) {
+				return false;
+			}
+
+			reused = true;
+			return true;
+		}
+
+		/**
+		 * @return strumień wejściowy połączenia
+		 */
+		public LudInputStream getInput() {
+			return input;
+		}
+
+		/**
+		 * @return strumień wyjściowy połączenia
+		 */
+		public OutputStream getOutput() {
+			return output;
+		}
+
+		/**
+		 * @return adres IP serwera
+		 */
+		public InetAddress getAddress() {
+			return socket.getInetAddress();
+		}
+
+		/**
+		 * @return {@code true} jeśli połączenie zostało wzięte z puli, a nie nawiązane od nowa
+		 */
+		public boolean wasReused() {
+			return reused;
+		}
+
+		/**
+		 * Zamyka połączenie.
+		 */
+		public void close() {
+			try {
+				input.close();
+				socket.close();
+			} catch(IOException ignore) {}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package pl.trammer.ludwik.ludproxy.errors;
+
+/**
+ * Wyjątek spowoduje wysłanie do klienta strony błędu "503: Service Unavailable".
+ * <p>
+ * Więcej informacji w opisie klasy {@link HttpError}.
+ *
+ */
+@SuppressWarnings("serial")
+public class HttpServiceUnavailable extends HttpInternalServerError {
+	public HttpServiceUnavailable(String msg) {
+		super(msg);
+		error_code = 503;
+		error_desc = "Service Unavailable";
+	}
+}
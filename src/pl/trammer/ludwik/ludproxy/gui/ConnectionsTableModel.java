@@ -124,7 +124,7 @@ public class ConnectionsTableModel extends AbstractTableModel implements ListSel
 		private String type;
 		private String conditional;
 		private double latency;
-		private int size;
+		private long size;
 		private InetAddress serverIp;
 		
 		public ConnectionRow(int threadNum, ServerResponse response) {